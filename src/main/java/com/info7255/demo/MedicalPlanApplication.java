@@ -2,27 +2,57 @@ package com.info7255.demo;
 
 import com.info7255.demo.service.IndexingListener;
 import com.info7255.demo.validator.SSLUtil;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.DirectExchange;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
-import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
-import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 @SpringBootApplication
 public class MedicalPlanApplication {
 
 	public static final String topicExchangeName = "spring-boot-exchange";
 
+	// No longer published to; still consumed so messages queued before partitioning drain
 	public static final String queueName = "indexing-queue";
 
+	// Partition queues dead-letter rejected messages here, to be inspected and replayed by hand
+	public static final String deadLetterExchangeName = "indexing-dlx";
+	public static final String deadLetterQueueName = "indexing-dlq";
+
+	@Value("${medicalplan.indexing.partitions:4}")
+	private int partitions;
+
+	@Value("${medicalplan.indexing.prefetch:50}")
+	private int prefetch;
+
+	@Value("${medicalplan.indexing.max-attempts:3}")
+	private int maxAttempts;
+
+	@Value("${medicalplan.indexing.retry-initial-interval-ms:500}")
+	private long retryInitialIntervalMs;
+
+	public static String partitionQueueName(int partition) {
+		return queueName + "-" + partition;
+	}
+
 	@Bean
 	Queue queue() {
 		return new Queue(queueName, false);
@@ -39,18 +69,66 @@ public class MedicalPlanApplication {
 	}
 
 	@Bean
-	MessageListenerAdapter listenerAdapter(IndexingListener receiver) {
-		return new MessageListenerAdapter(receiver, "receiveMessage");
+	Declarables deadLetterQueue() {
+		DirectExchange deadLetterExchange = new DirectExchange(deadLetterExchangeName);
+		Queue deadLetterQueue = QueueBuilder.durable(deadLetterQueueName).build();
+		return new Declarables(deadLetterExchange, deadLetterQueue,
+				BindingBuilder.bind(deadLetterQueue).to(deadLetterExchange).with(deadLetterQueueName));
 	}
 
+	/**
+	 * Partition queues are durable and allow a single active consumer, so however many
+	 * instances subscribe, the broker delivers each partition to one of them at a time.
+	 * A rejected message goes to the dead-letter queue.
+	 */
+	@Bean
+	Declarables partitionQueues(TopicExchange exchange) {
+		List<Declarable> declarables = new ArrayList<>();
+		for (int partition = 0; partition < partitions; partition++) {
+			Queue partitionQueue = QueueBuilder.durable(partitionQueueName(partition))
+					.singleActiveConsumer()
+					.deadLetterExchange(deadLetterExchangeName)
+					.deadLetterRoutingKey(deadLetterQueueName)
+					.build();
+			declarables.add(partitionQueue);
+			declarables.add(BindingBuilder.bind(partitionQueue).to(exchange).with(partitionQueue.getName()));
+		}
+		return new Declarables(declarables);
+	}
 
+	/**
+	 * One consumer per queue in this instance, and the broker keeps only one of the
+	 * instances' consumers active per partition: partitions are indexed in parallel
+	 * while the messages of any one plan, which always share a partition, are
+	 * applied in order. The listener acknowledges each message itself once the index
+	 * has its writes. A message that still fails after a few attempts is rejected
+	 * without requeueing, so it is dead-lettered instead of being redelivered forever.
+	 */
 	@Bean
-	SimpleMessageListenerContainer container(ConnectionFactory connectionFactory,
-											 MessageListenerAdapter listenerAdapter) {
-		SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+	DirectMessageListenerContainer container(ConnectionFactory connectionFactory,
+											 IndexingListener indexingListener) {
+		List<String> queueNames = new ArrayList<>();
+		queueNames.add(queueName);
+		for (int partition = 0; partition < partitions; partition++) {
+			queueNames.add(partitionQueueName(partition));
+		}
+
+		DirectMessageListenerContainer container = new DirectMessageListenerContainer();
 		container.setConnectionFactory(connectionFactory);
-		container.setQueueNames(queueName);
-		container.setMessageListener(listenerAdapter);
+		container.setQueueNames(queueNames.toArray(new String[0]));
+		container.setConsumersPerQueue(1);
+		container.setPrefetchCount(prefetch);
+		container.setMessageListener(indexingListener);
+		container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+		container.setDefaultRequeueRejected(false);
+		container.setAdviceChain(RetryInterceptorBuilder.stateless()
+				.maxAttempts(maxAttempts)
+				.backOffOptions(retryInitialIntervalMs, 2.0, retryInitialIntervalMs * 10)
+				// In manual mode the container only rejects a message when asked to explicitly
+				.recoverer((message, cause) -> {
+					throw new AmqpRejectAndDontRequeueException("Indexing failed after " + maxAttempts + " attempts", true, cause);
+				})
+				.build());
 		return container;
 	}
 
@@ -0,0 +1,31 @@
+package com.info7255.demo.configuration;
+
+import com.info7255.demo.filter.LocalSigningKeySource;
+import com.info7255.demo.filter.RemoteSigningKeySource;
+import com.info7255.demo.filter.SigningKeySource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ResourceLoader;
+
+@Configuration
+public class AuthConfiguration {
+
+    @Value("${medicalplan.auth.jwks-uri:https://www.googleapis.com/oauth2/v3/certs}")
+    private String jwksUri;
+
+    @Value("${medicalplan.auth.jwks-location:}")
+    private String jwksLocation;
+
+    /**
+     * Keys from {@code medicalplan.auth.jwks-location} when it is set, such as a local
+     * file of test keys, otherwise from the identity provider's JWKS endpoint.
+     */
+    @Bean
+    public SigningKeySource signingKeySource(ResourceLoader resourceLoader) {
+        if (!jwksLocation.isEmpty()) {
+            return new LocalSigningKeySource(resourceLoader.getResource(jwksLocation));
+        }
+        return new RemoteSigningKeySource(jwksUri);
+    }
+}
@@ -1,16 +1,37 @@
 package com.info7255.demo.configuration;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
-import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-
-import java.util.Map;
+import redis.clients.jedis.JedisPoolConfig;
 
 @Configuration
 public class RedisConfiguration {
+
+    @Value("${redis.host:localhost}")
+    private String host;
+
+    @Value("${redis.port:6379}")
+    private int port;
+
+    @Value("${redis.timeout-ms:2000}")
+    private int timeoutMs;
+
+    @Value("${redis.pool.max-total:64}")
+    private int maxTotal;
+
+    @Value("${redis.pool.max-idle:32}")
+    private int maxIdle;
+
+    @Value("${redis.pool.min-idle:4}")
+    private int minIdle;
+
+    @Value("${redis.pool.max-wait-ms:2000}")
+    private long maxWaitMs;
+
     @Bean
     JedisConnectionFactory jedisConnectionFactory() {
         return new JedisConnectionFactory();
@@ -23,8 +44,16 @@ public class RedisConfiguration {
         return template;
     }
 
-    @Bean
-    public Jedis getJedis(){
-        return new JedisPool().getResource();
+    @Bean(destroyMethod = "close")
+    public JedisPool jedisPool() {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxTotal);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        // Block callers for at most maxWaitMs when every connection is borrowed
+        poolConfig.setBlockWhenExhausted(true);
+        poolConfig.setMaxWaitMillis(maxWaitMs);
+        poolConfig.setTestWhileIdle(true);
+        return new JedisPool(poolConfig, host, port, timeoutMs);
     }
 }
@@ -0,0 +1,21 @@
+package com.info7255.demo.configuration;
+
+import com.info7255.demo.filter.RedisRequestInterceptor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebMvcConfiguration implements WebMvcConfigurer {
+
+    private final RedisRequestInterceptor redisRequestInterceptor;
+
+    public WebMvcConfiguration(RedisRequestInterceptor redisRequestInterceptor) {
+        this.redisRequestInterceptor = redisRequestInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(redisRequestInterceptor);
+    }
+}
@@ -1,28 +1,52 @@
 package com.info7255.demo.controller;
 
-import com.info7255.demo.MedicalPlanApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.info7255.demo.exception.BadRequestException;
 import com.info7255.demo.exception.ConflictException;
 import com.info7255.demo.exception.ETagParseException;
+import com.info7255.demo.exception.PreconditionFailedException;
 import com.info7255.demo.exception.ResourceNotFoundException;
+import com.info7255.demo.model.BulkItemResult;
 import com.info7255.demo.model.ErrorResponse;
+import com.info7255.demo.model.PlanPage;
+import com.info7255.demo.model.SearchPage;
+import com.info7255.demo.service.IndexingPipelineMonitor;
+import com.info7255.demo.service.IndexingPublisher;
 import com.info7255.demo.service.MedicalPlanService;
+import com.info7255.demo.service.PlanDelta;
+import com.info7255.demo.service.PlanSearchService;
+import com.info7255.demo.service.RedisCommandMetrics;
 import com.info7255.demo.validator.JsonValidator;
 import org.everit.json.schema.ValidationException;
+import org.json.JSONException;
 import org.json.JSONObject;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 @RestController
 public class MedicalPlanController {
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final int STREAM_PAGE_SIZE = 500;
+    private static final int BULK_BATCH_SIZE = 500;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
     @Autowired
     private MedicalPlanService medicalPlanService;
 
@@ -30,15 +54,26 @@ public class MedicalPlanController {
     private JsonValidator validator;
 
     @Autowired
-    private final RabbitTemplate template;
+    private final IndexingPublisher indexingPublisher;
+
+    @Autowired
+    private IndexingPipelineMonitor pipelineMonitor;
+
+    @Autowired
+    private PlanSearchService planSearchService;
+
+    @Autowired
+    private RedisCommandMetrics redisCommandMetrics;
 
-    public MedicalPlanController(MedicalPlanService medicalPlanService, RabbitTemplate template) {
+    public MedicalPlanController(MedicalPlanService medicalPlanService, IndexingPublisher indexingPublisher) {
         this.medicalPlanService = medicalPlanService;
-        this.template = template;
+        this.indexingPublisher = indexingPublisher;
     }
 
     @PostMapping(value = "/plan", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> createPlan(@RequestBody(required = false) String medicalPlan) {
+    public ResponseEntity<?> createPlan(@RequestBody(required = false) String medicalPlan,
+                                        @RequestParam(defaultValue = "false") boolean refresh) {
+        if (pipelineMonitor.isOverloaded()) return serviceUnavailable();
         if (Objects.isNull(medicalPlan) || medicalPlan.isEmpty()) {
             throw new BadRequestException("Request body is missing! Kindly provide the JSON.");
         }
@@ -57,13 +92,8 @@ public class MedicalPlanController {
 
         String eTag = medicalPlanService.addNewPlan(plan, key);
 
-        // Send a message to queue for indexing
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "SAVE");
-        message.put("body", medicalPlan);
-
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(MedicalPlanApplication.queueName, message);
+        // Send a message to queue for indexing; refresh=true makes it searchable as soon as it is indexed
+        indexingPublisher.publish(IndexingPublisher.SAVE, plan.getString("objectId"), plan.toMap(), refresh);
 
 
         HttpHeaders headersToSend = new HttpHeaders();
@@ -72,9 +102,84 @@ public class MedicalPlanController {
         return new ResponseEntity<>("{\"objectId\": \"" + plan.getString("objectId") + "\"}", headersToSend, HttpStatus.CREATED);
     }
 
+    /**
+     * Creates plans from an NDJSON body, one plan per line. Lines are validated one
+     * by one and written in batches of {@value #BULK_BATCH_SIZE}; a bad line is
+     * reported in its own result and never fails the rest of the request.
+     */
+    @PostMapping(value = "/plan/_bulk", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> bulkCreatePlans(InputStream body) throws IOException {
+        if (pipelineMonitor.isOverloaded()) return serviceUnavailable();
+        List<BulkItemResult> results = new ArrayList<>();
+        List<BulkItem> pending = new ArrayList<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+
+            JSONObject plan;
+            try {
+                plan = new JSONObject(line);
+                validator.validateJsonSchema(plan);
+            } catch (JSONException | ValidationException e) {
+                results.add(new BulkItemResult(lineNumber, null, BulkItemResult.INVALID, null, e.getMessage()));
+                continue;
+            }
+            pending.add(new BulkItem(lineNumber, plan));
+            if (pending.size() == BULK_BATCH_SIZE) {
+                results.addAll(writeBulkBatch(pending));
+                pending.clear();
+            }
+        }
+        results.addAll(writeBulkBatch(pending));
+
+        results.sort(Comparator.comparingInt(BulkItemResult::getLine));
+        return new ResponseEntity<>(results, HttpStatus.OK);
+    }
+
+    private List<BulkItemResult> writeBulkBatch(List<BulkItem> items) {
+        List<BulkItemResult> results = new ArrayList<>();
+        Map<String, BulkItem> toCreate = new LinkedHashMap<>();
+        for (BulkItem item : items) {
+            String key = "plan:" + item.plan.getString("objectId");
+            if (toCreate.putIfAbsent(key, item) != null) {
+                results.add(new BulkItemResult(item.line, item.plan.getString("objectId"), BulkItemResult.CONFLICT, null,
+                        "Plan with this key appears earlier in the request."));
+            }
+        }
+
+        Set<String> existing = medicalPlanService.findExistingKeys(toCreate.keySet());
+        Map<String, JSONObject> plans = new LinkedHashMap<>();
+        toCreate.forEach((key, item) -> {
+            if (existing.contains(key)) {
+                results.add(new BulkItemResult(item.line, item.plan.getString("objectId"), BulkItemResult.CONFLICT, null,
+                        "Plan with this key already exists."));
+            } else {
+                plans.put(key, item.plan);
+            }
+        });
+
+        Map<String, String> eTags = medicalPlanService.addNewPlans(plans);
+
+        // Publish the whole batch over one channel instead of checking one out per message
+        Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
+        plans.forEach((key, plan) -> documents.put(plan.getString("objectId"), plan.toMap()));
+        indexingPublisher.publishAll(IndexingPublisher.SAVE, documents);
+
+        eTags.forEach((key, eTag) -> {
+            BulkItem item = toCreate.get(key);
+            results.add(new BulkItemResult(item.line, item.plan.getString("objectId"), BulkItemResult.CREATED, eTag, null));
+        });
+        return results;
+    }
+
     @GetMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> getPlan(@PathVariable String objectId,
                                      @PathVariable String objectType,
+                                     @RequestParam(required = false) String fields,
                                      @RequestHeader HttpHeaders headers) {
         String key = objectType + ":" + objectId;
         if (!medicalPlanService.checkIfKeyExists(key)) {
@@ -88,71 +193,142 @@ public class MedicalPlanController {
             throw new ETagParseException("ETag value invalid! Make sure the ETag value is a string!");
         }
 
+        // Every node carries its own hash-tree eTag, so sub-objects revalidate without loading the subtree
         String eTag = medicalPlanService.fetchETag(key);
 
         HttpHeaders headersToSend = new HttpHeaders();
-        headersToSend.setETag(eTag);
+        if (eTag != null) {
+            headersToSend.setETag(eTag);
+        }
 
-        if (objectType.equals("plan") && ifNoneMatch.contains(eTag)) {
+        if (eTag != null && ifNoneMatch.contains(eTag)) {
             return new ResponseEntity<>(null, headersToSend, HttpStatus.NOT_MODIFIED);
         }
 
-        Map<String, Object> retrievedMedicalPlan = medicalPlanService.retrievePlanDetails(key);
+        // A projection is derived from the same object, so the object's eTag still validates it
+        Map<String, Object> retrievedMedicalPlan = fields == null
+                ? medicalPlanService.retrievePlanDetails(key, eTag)
+                : medicalPlanService.retrievePlanFields(key, fields);
+        return new ResponseEntity<>(retrievedMedicalPlan, headersToSend, HttpStatus.OK);
+    }
 
-        if (objectType.equals("plan")) {
-            return new ResponseEntity<>(retrievedMedicalPlan, headersToSend, HttpStatus.OK);
+    @GetMapping(value="/plan")
+    public ResponseEntity<?> getAllPlans(@RequestParam(required = false) String cursor,
+                                         @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_PAGE_SIZE);
         }
 
-        return new ResponseEntity<>(retrievedMedicalPlan, HttpStatus.OK);
+        PlanPage page = medicalPlanService.fetchPlans(cursor, limit);
+        HttpHeaders headersToSend = new HttpHeaders();
+        if (page.getNextCursor() != null) {
+            headersToSend.set(NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        if(page.getPlans().isEmpty()) {
+            return new ResponseEntity<>("No Plans Found", headersToSend, HttpStatus.OK);
+        }
+        return new ResponseEntity<>(page.getPlans(), headersToSend, HttpStatus.OK);
     }
 
-    @GetMapping(value="/plan")
-    public ResponseEntity<?> getAllPlans() {
-        List<Map<String, Object>> medicalPlans = medicalPlanService.fetchAllPlans();
-        if(medicalPlans.isEmpty()) {
-            return new ResponseEntity<>("No Plans Found", HttpStatus.OK);
+    /**
+     * Searches the plan index; see {@link PlanSearchService} for the query language.
+     * Returns the ids of matching objects of {@code type}, or the objects themselves
+     * read from Redis when {@code hydrate} is set.
+     */
+    @GetMapping(value = "/plan/_search", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> searchPlans(@RequestParam(defaultValue = "") String q,
+                                         @RequestParam(defaultValue = "plan") String type,
+                                         @RequestParam(required = false) String cursor,
+                                         @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+                                         @RequestParam(defaultValue = "false") boolean hydrate) throws IOException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        SearchPage page = planSearchService.search(type, q, cursor, limit);
+        HttpHeaders headersToSend = new HttpHeaders();
+        if (page.getNextCursor() != null) {
+            headersToSend.set(NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        if (!hydrate) {
+            return new ResponseEntity<>(page.getIds(), headersToSend, HttpStatus.OK);
+        }
+
+        List<Map<String, Object>> objects = new ArrayList<>();
+        for (String key : page.getKeys()) {
+            Map<String, Object> object = medicalPlanService.retrievePlanDetails(key);
+            // The index can briefly trail a delete
+            if (!object.isEmpty()) objects.add(object);
         }
-        return new ResponseEntity<>(medicalPlans, HttpStatus.OK);
+        return new ResponseEntity<>(objects, headersToSend, HttpStatus.OK);
+    }
+
+    /**
+     * Streams every plan as newline-delimited JSON, one line per plan, reading the
+     * id index a page at a time so memory stays flat however many plans exist.
+     * A client disconnect surfaces as an IOException on write and ends the stream.
+     */
+    @GetMapping(value = "/plan", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllPlans() {
+        // The body runs on an async thread, so its Redis commands are tagged with this endpoint there
+        String endpoint = redisCommandMetrics.currentEndpoint();
+        StreamingResponseBody body = outputStream -> {
+            redisCommandMetrics.begin(endpoint);
+            try {
+                String cursor = null;
+                List<String> planIds;
+                do {
+                    planIds = medicalPlanService.fetchPlanIds(cursor, STREAM_PAGE_SIZE);
+                    for (String planId : planIds) {
+                        Map<String, Object> plan = medicalPlanService.retrievePlanDetails("plan:" + planId);
+                        if (plan.isEmpty()) continue;
+                        outputStream.write(jsonMapper.writeValueAsBytes(plan));
+                        outputStream.write('\n');
+                        outputStream.flush();
+                    }
+                    if (!planIds.isEmpty()) cursor = planIds.get(planIds.size() - 1);
+                } while (planIds.size() == STREAM_PAGE_SIZE);
+            } finally {
+                redisCommandMetrics.end();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
     }
 
     @DeleteMapping("/{objectType}/{objectId}")
     public ResponseEntity<?> deletePlan(@PathVariable String objectId,
-                                        @PathVariable String objectType) {
+                                        @PathVariable String objectType,
+                                        @RequestParam(defaultValue = "false") boolean refresh) {
+        if (pipelineMonitor.isOverloaded()) return serviceUnavailable();
         String key = objectType + ":" + objectId;
         if (!medicalPlanService.checkIfKeyExists(key)) {
             throw new ResourceNotFoundException("Plan not found with the specified key!");
         }
 
-        // Send message to queue for deleting indices
-        Map<String, Object> plan = medicalPlanService.retrievePlanDetails(key);
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "DELETE");
-        message.put("body",  new JSONObject(plan).toString());
-
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(MedicalPlanApplication.queueName, message);
+        // The subtree's ids let the index delete documents whatever they were routed by
+        Map<String, Object> subtree = medicalPlanService.retrievePlanDetails(key);
+        String ownerKey = medicalPlanService.removePlan(key);
 
-        medicalPlanService.removePlan(key);
+        // Keyed by the owning plan so the delete shares a partition, and an order, with the plan's other changes
+        String planId = ownerKey == null ? objectId : ownerKey.substring("plan:".length());
+        indexingPublisher.publish(IndexingPublisher.DELETE, planId, subtree, refresh);
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
     @PatchMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> patchPlan(@PathVariable String objectId,
                                        @RequestBody(required = false) String planObject,
+                                       @RequestParam(defaultValue = "false") boolean refresh,
                                        @RequestHeader HttpHeaders headers ) {
         if (planObject == null || planObject.isEmpty()) throw new BadRequestException("Request body is missing!");
+        if (pipelineMonitor.isOverloaded()) return serviceUnavailable();
 
-        JSONObject plan = new JSONObject(planObject);
-        try {
-            validator.validateJsonSchema(plan);
-        } catch (ValidationException e) {
-            throw new BadRequestException("Bad Request: Json not validated");
-        }
+        // A merge patch is usually a fragment, so the schema is checked on the merged plan instead
+        JSONObject patch = new JSONObject(planObject);
 
         String key = "plan:" + objectId;
         if (!medicalPlanService.checkIfKeyExists(key)) throw new ResourceNotFoundException("Plan not found!");
 
-        String eTag = medicalPlanService.fetchETag(key);
         List<String> ifMatch;
         try {
             ifMatch = headers.getIfMatch();
@@ -163,24 +339,49 @@ public class MedicalPlanController {
         if (ifMatch.isEmpty()) {
             throw new ETagParseException("ETag is not provided with request!");
         }
-        if (!ifMatch.contains(eTag)) {
-            return preConditionFailed(eTag);
+
+        // If-Match is checked inside the update, against the plan it is about to change
+        PlanDelta delta;
+        try {
+            delta = medicalPlanService.updatePlan(patch, key, ifMatch);
+        } catch (PreconditionFailedException e) {
+            return preConditionFailed(e.getETag());
         }
 
+        // Send only the objects the patch added, changed or removed for index update
+        if (!delta.isEmpty()) {
+            indexingPublisher.publish(IndexingPublisher.DELTA, objectId, delta.toPayload(), refresh);
+        }
 
-        String updatedEtag = medicalPlanService.addNewPlan(plan, key);
+        return ResponseEntity.ok()
+                .eTag(delta.getETag())
+                .body(new JSONObject().put("message: ", "Plan updated successfully!!").toString());
+    }
 
-        // Send message to queue for index update
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "SAVE");
-        message.put("body", planObject);
+    private static class BulkItem {
+        private final int line;
+        private final JSONObject plan;
 
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(MedicalPlanApplication.queueName, message);
+        private BulkItem(int line, JSONObject plan) {
+            this.line = line;
+            this.plan = plan;
+        }
+    }
 
-        return ResponseEntity.ok()
-                .eTag(updatedEtag)
-                .body(new JSONObject().put("message: ", "Plan updated successfully!!").toString());
+    /**
+     * Refuses a write while the index lags too far behind, so clients back off
+     * instead of growing the indexing backlog.
+     */
+    private ResponseEntity<?> serviceUnavailable() {
+        HttpHeaders headersToSend = new HttpHeaders();
+        headersToSend.set(HttpHeaders.RETRY_AFTER, String.valueOf(pipelineMonitor.getRetryAfterSeconds()));
+        ErrorResponse errorResponse = new ErrorResponse(
+                "Indexing is behind, retry later",
+                HttpStatus.SERVICE_UNAVAILABLE.value(),
+                new Date(),
+                HttpStatus.SERVICE_UNAVAILABLE.getReasonPhrase()
+        );
+        return new ResponseEntity<>(errorResponse, headersToSend, HttpStatus.SERVICE_UNAVAILABLE);
     }
 
     private ResponseEntity preConditionFailed(String eTag) {
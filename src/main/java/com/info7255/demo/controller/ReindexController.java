@@ -0,0 +1,66 @@
+package com.info7255.demo.controller;
+
+import com.info7255.demo.exception.ConflictException;
+import com.info7255.demo.exception.ForbiddenException;
+import com.info7255.demo.filter.AuthFilter;
+import com.info7255.demo.service.PlanReindexJob;
+import com.nimbusds.jwt.JWTClaimsSet;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Admin endpoints, open only to the token subjects or verified emails listed in
+ * {@code medicalplan.admin.subjects}. With the list empty nobody is an admin.
+ */
+@RestController
+public class ReindexController {
+
+    private final PlanReindexJob reindexJob;
+    private final List<String> adminSubjects;
+
+    public ReindexController(PlanReindexJob reindexJob,
+                             @Value("${medicalplan.admin.subjects:}") List<String> adminSubjects) {
+        this.reindexJob = reindexJob;
+        this.adminSubjects = adminSubjects;
+    }
+
+    /**
+     * Starts rebuilding plan-index from Redis, or resumes an interrupted rebuild.
+     */
+    @PostMapping(value = "/admin/reindex", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> startReindex(HttpServletRequest request) {
+        requireAdmin(request);
+        if (!reindexJob.start()) {
+            throw new ConflictException("A reindex is already running.");
+        }
+        return new ResponseEntity<>(reindexJob.status(), HttpStatus.ACCEPTED);
+    }
+
+    @GetMapping(value = "/admin/reindex", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> reindexStatus(HttpServletRequest request) {
+        requireAdmin(request);
+        return new ResponseEntity<>(reindexJob.status(), HttpStatus.OK);
+    }
+
+    private void requireAdmin(HttpServletRequest request) {
+        JWTClaimsSet claims = (JWTClaimsSet) request.getAttribute(AuthFilter.CLAIMS_ATTRIBUTE);
+        if (claims == null) throw new ForbiddenException("Admin access required.");
+        if (claims.getSubject() != null && adminSubjects.contains(claims.getSubject())) return;
+        try {
+            String email = claims.getStringClaim("email");
+            if (email != null && Boolean.TRUE.equals(claims.getBooleanClaim("email_verified")) && adminSubjects.contains(email)) return;
+        } catch (ParseException e) {
+            // A malformed email claim grants nothing
+        }
+        throw new ForbiddenException("Admin access required.");
+    }
+}
@@ -0,0 +1,11 @@
+package com.info7255.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.FORBIDDEN)
+public class ForbiddenException extends RuntimeException{
+    public ForbiddenException(String message) {
+        super(message);
+    }
+}
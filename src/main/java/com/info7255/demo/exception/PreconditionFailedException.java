@@ -0,0 +1,21 @@
+package com.info7255.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+public class PreconditionFailedException extends RuntimeException{
+    private final String eTag;
+
+    public PreconditionFailedException(String eTag) {
+        super("Precondition failed");
+        this.eTag = eTag;
+    }
+
+    /**
+     * The current eTag of the resource, which the request did not match.
+     */
+    public String getETag() {
+        return eTag;
+    }
+}
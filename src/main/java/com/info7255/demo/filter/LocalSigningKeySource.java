@@ -0,0 +1,35 @@
+package com.info7255.demo.filter;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Keys read once from a JWKS document, e.g. a file of test keys, so tokens can
+ * be verified without reaching the identity provider.
+ */
+public class LocalSigningKeySource implements SigningKeySource {
+    private static final Logger logger = LoggerFactory.getLogger(LocalSigningKeySource.class);
+
+    private final JWKSet keys;
+
+    public LocalSigningKeySource(Resource resource) {
+        try (InputStream inputStream = resource.getInputStream()) {
+            this.keys = JWKSet.parse(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException | ParseException e) {
+            throw new IllegalStateException("Cannot load signing keys from " + resource.getDescription(), e);
+        }
+        logger.info("Loaded {} signing keys from {}", keys.getKeys().size(), resource.getDescription());
+    }
+
+    @Override
+    public JWKSet getKeys() {
+        return keys;
+    }
+}
@@ -0,0 +1,47 @@
+package com.info7255.demo.filter;
+
+import com.info7255.demo.service.RedisCommandMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Scopes {@link RedisCommandMetrics} to each handled request, tagging it with the
+ * HTTP method and matched path pattern, e.g. {@code GET /{objectType}/{objectId}}.
+ * A request that goes async ends its scope when the first dispatch returns; work
+ * on the async thread begins its own with {@link RedisCommandMetrics#currentEndpoint()}
+ * carried over, and the async dispatch that completes the request is not scoped again.
+ */
+@Component
+public class RedisRequestInterceptor implements AsyncHandlerInterceptor {
+
+    private final RedisCommandMetrics metrics;
+
+    public RedisRequestInterceptor(RedisCommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) return true;
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        // The pattern rather than the URI keeps the endpoint tag to one value per handler
+        metrics.begin(request.getMethod() + " " + (pattern == null ? "unmatched" : pattern));
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // afterCompletion does not run for this dispatch, and the thread goes back to the pool
+        metrics.end();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        metrics.end();
+    }
+}
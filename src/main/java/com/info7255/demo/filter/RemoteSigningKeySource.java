@@ -0,0 +1,81 @@
+package com.info7255.demo.filter;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.nimbusds.jose.jwk.JWKSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keys fetched from a JWKS endpoint and held in memory. A background thread
+ * fetches them again shortly before the max-age the endpoint sent runs out, so
+ * request threads never wait on the network. A failed fetch keeps the previous
+ * keys and is retried.
+ */
+public class RemoteSigningKeySource implements SigningKeySource {
+    private static final Logger logger = LoggerFactory.getLogger(RemoteSigningKeySource.class);
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+    // Refresh this long before the keys expire, and never more often than the minimum interval
+    private static final long REFRESH_MARGIN_SECONDS = 300;
+    private static final long MIN_REFRESH_SECONDS = 60;
+    private static final long DEFAULT_MAX_AGE_SECONDS = 3600;
+    private static final long RETRY_SECONDS = 30;
+
+    private final GenericUrl jwksUri;
+    private final HttpRequestFactory requestFactory = new ApacheHttpTransport().createRequestFactory();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jwks-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile JWKSet keys = new JWKSet();
+
+    public RemoteSigningKeySource(String jwksUri) {
+        this.jwksUri = new GenericUrl(jwksUri);
+        refresh();
+    }
+
+    @Override
+    public JWKSet getKeys() {
+        return keys;
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private void refresh() {
+        long nextRefreshSeconds;
+        try {
+            HttpResponse response = requestFactory.buildGetRequest(jwksUri).execute();
+            try {
+                keys = JWKSet.parse(response.parseAsString());
+                long maxAge = maxAgeSeconds(response.getHeaders().getCacheControl());
+                nextRefreshSeconds = Math.max(MIN_REFRESH_SECONDS, maxAge - REFRESH_MARGIN_SECONDS);
+            } finally {
+                response.disconnect();
+            }
+            logger.info("Fetched {} signing keys from {}, next refresh in {} s", keys.getKeys().size(), jwksUri, nextRefreshSeconds);
+        } catch (Exception e) {
+            nextRefreshSeconds = RETRY_SECONDS;
+            logger.error("Keeping {} previous signing keys, fetch from {} failed: {}", keys.getKeys().size(), jwksUri, e.getMessage());
+        }
+        refresher.schedule(this::refresh, nextRefreshSeconds, TimeUnit.SECONDS);
+    }
+
+    private static long maxAgeSeconds(String cacheControl) {
+        if (cacheControl == null) return DEFAULT_MAX_AGE_SECONDS;
+        Matcher matcher = MAX_AGE.matcher(cacheControl);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : DEFAULT_MAX_AGE_SECONDS;
+    }
+}
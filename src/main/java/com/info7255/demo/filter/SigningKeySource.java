@@ -0,0 +1,12 @@
+package com.info7255.demo.filter;
+
+import com.nimbusds.jose.jwk.JWKSet;
+
+/**
+ * Supplies the public keys ID tokens are signed with. Called on every token that
+ * is not already cached, so implementations must answer from memory.
+ */
+public interface SigningKeySource {
+
+    JWKSet getKeys();
+}
@@ -0,0 +1,157 @@
+package com.info7255.demo.filter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies RS256 ID tokens against the keys held by a {@link SigningKeySource},
+ * entirely in memory. Verified tokens are cached by their SHA-256 hash until
+ * their {@code exp}, so a client reusing a token pays for one hash lookup.
+ */
+@Component
+public class TokenVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(TokenVerifier.class);
+
+    private final SigningKeySource keySource;
+    private final String clientId;
+    private final List<String> issuers;
+    private final long clockSkewMs;
+    private final Cache<String, JWTClaimsSet> verifiedTokens;
+
+    private final Timer cachedTimer;
+    private final Timer verifiedTimer;
+    private final Timer rejectedTimer;
+
+    public TokenVerifier(SigningKeySource keySource,
+                         MeterRegistry registry,
+                         @Value("${medicalplan.auth.client-id:GET_YOUR_CLIENT_ID_FROM_GOOGLE}") String clientId,
+                         @Value("${medicalplan.auth.issuers:accounts.google.com,https://accounts.google.com}") List<String> issuers,
+                         @Value("${medicalplan.auth.clock-skew-seconds:300}") long clockSkewSeconds,
+                         @Value("${medicalplan.auth.token-cache.max-size:10000}") long maxSize) {
+        this.keySource = keySource;
+        this.clientId = clientId;
+        this.issuers = issuers;
+        this.clockSkewMs = TimeUnit.SECONDS.toMillis(clockSkewSeconds);
+        this.verifiedTokens = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new ExpireAtTokenExpiry())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, verifiedTokens, "tokenCache");
+        this.cachedTimer = Timer.builder("auth.token.verification").tag("result", "cached").register(registry);
+        this.verifiedTimer = Timer.builder("auth.token.verification").tag("result", "verified").register(registry);
+        this.rejectedTimer = Timer.builder("auth.token.verification").tag("result", "rejected").register(registry);
+    }
+
+    /**
+     * Returns the claims of a valid token, or {@code null} when the token is malformed,
+     * signed by an unknown key, expired, or issued for another client.
+     */
+    public JWTClaimsSet verify(String token) {
+        long start = System.nanoTime();
+        String tokenHash = hash(token);
+        JWTClaimsSet claims = verifiedTokens.getIfPresent(tokenHash);
+        if (claims != null) {
+            cachedTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return claims;
+        }
+
+        claims = verifySignatureAndClaims(token);
+        if (claims == null) {
+            rejectedTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return null;
+        }
+        verifiedTokens.put(tokenHash, claims);
+        verifiedTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return claims;
+    }
+
+    private JWTClaimsSet verifySignatureAndClaims(String token) {
+        try {
+            SignedJWT jwt = SignedJWT.parse(token);
+            if (!JWSAlgorithm.RS256.equals(jwt.getHeader().getAlgorithm())) {
+                logger.warn("Rejected token signed with {}", jwt.getHeader().getAlgorithm());
+                return null;
+            }
+            JWK key = keySource.getKeys().getKeyByKeyId(jwt.getHeader().getKeyID());
+            if (!(key instanceof RSAKey)) {
+                logger.warn("Rejected token signed with unknown key {}", jwt.getHeader().getKeyID());
+                return null;
+            }
+            if (!jwt.verify(new RSASSAVerifier((RSAKey) key))) {
+                logger.warn("Rejected token with an invalid signature");
+                return null;
+            }
+
+            JWTClaimsSet claims = jwt.getJWTClaimsSet();
+            long now = System.currentTimeMillis();
+            Date expiration = claims.getExpirationTime();
+            Date issuedAt = claims.getIssueTime();
+            if (expiration == null || expiration.getTime() + clockSkewMs <= now
+                    || (issuedAt != null && issuedAt.getTime() - clockSkewMs > now)
+                    || !issuers.contains(claims.getIssuer())
+                    || claims.getAudience() == null || !claims.getAudience().contains(clientId)) {
+                logger.warn("Rejected token for {} issued by {}", claims.getAudience(), claims.getIssuer());
+                return null;
+            }
+            return claims;
+        } catch (ParseException | JOSEException e) {
+            logger.warn("Rejected unreadable token: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keeps each verified token until its {@code exp}, however often it is read.
+     */
+    private static class ExpireAtTokenExpiry implements Expiry<String, JWTClaimsSet> {
+        @Override
+        public long expireAfterCreate(String tokenHash, JWTClaimsSet claims, long currentTime) {
+            long remainingMs = claims.getExpirationTime().getTime() - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMs));
+        }
+
+        @Override
+        public long expireAfterUpdate(String tokenHash, JWTClaimsSet claims, long currentTime, long currentDuration) {
+            return expireAfterCreate(tokenHash, claims, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String tokenHash, JWTClaimsSet claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.info7255.demo.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkItemResult {
+
+    public static final String CREATED = "created";
+    public static final String CONFLICT = "conflict";
+    public static final String INVALID = "invalid";
+
+    private final int line;
+    private final String objectId;
+    private final String status;
+    private final String eTag;
+    private final String error;
+
+    public BulkItemResult(int line, String objectId, String status, String eTag, String error) {
+        this.line = line;
+        this.objectId = objectId;
+        this.status = status;
+        this.eTag = eTag;
+        this.error = error;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public String getObjectId() {
+        return objectId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    @JsonProperty("eTag")
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
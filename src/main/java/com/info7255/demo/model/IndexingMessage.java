@@ -0,0 +1,67 @@
+package com.info7255.demo.model;
+
+import java.util.Map;
+
+/**
+ * One change for the indexing pipeline: what happened to which plan, and the
+ * plan document it applies, if any.
+ */
+public class IndexingMessage {
+
+    private final String operation;
+    private final String planId;
+    private final long sequence;
+    private final long publishedAt;
+    private final Map<String, Object> payload;
+    private final boolean refresh;
+
+    public IndexingMessage(String operation, String planId, long sequence, long publishedAt, Map<String, Object> payload) {
+        this(operation, planId, sequence, publishedAt, payload, false);
+    }
+
+    public IndexingMessage(String operation, String planId, long sequence, long publishedAt, Map<String, Object> payload,
+                           boolean refresh) {
+        this.operation = operation;
+        this.planId = planId;
+        this.sequence = sequence;
+        this.publishedAt = publishedAt;
+        this.payload = payload;
+        this.refresh = refresh;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getPlanId() {
+        return planId;
+    }
+
+    /**
+     * Increases with every message a publisher sends; later messages for a plan carry higher numbers.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Epoch millis at which the message was published, or 0 when unknown.
+     */
+    public long getPublishedAt() {
+        return publishedAt;
+    }
+
+    /**
+     * The plan document, or {@code null} for operations that only need the id.
+     */
+    public Map<String, Object> getPayload() {
+        return payload;
+    }
+
+    /**
+     * Whether the producer needs the change searchable as soon as it is applied.
+     */
+    public boolean isRefresh() {
+        return refresh;
+    }
+}
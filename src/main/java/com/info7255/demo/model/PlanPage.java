@@ -0,0 +1,26 @@
+package com.info7255.demo.model;
+
+import java.util.List;
+import java.util.Map;
+
+public class PlanPage {
+
+    private final List<Map<String, Object>> plans;
+    private final String nextCursor;
+
+    public PlanPage(List<Map<String, Object>> plans, String nextCursor) {
+        this.plans = plans;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Map<String, Object>> getPlans() {
+        return plans;
+    }
+
+    /**
+     * Cursor for the following page, or {@code null} when this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
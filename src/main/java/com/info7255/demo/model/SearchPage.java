@@ -0,0 +1,35 @@
+package com.info7255.demo.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchPage {
+
+    private final List<String> keys;
+    private final String nextCursor;
+
+    public SearchPage(List<String> keys, String nextCursor) {
+        this.keys = keys;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Redis keys ({@code <objectType>:<objectId>}) of the matching objects, in sort order.
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public List<String> getIds() {
+        List<String> ids = new ArrayList<>(keys.size());
+        for (String key : keys) ids.add(key.substring(key.indexOf(':') + 1));
+        return ids;
+    }
+
+    /**
+     * Cursor for the following page, or {@code null} when this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
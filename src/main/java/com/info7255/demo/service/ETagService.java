@@ -6,22 +6,30 @@ import org.springframework.stereotype.Service;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.List;
+import java.util.*;
 
 @Service
 public class ETagService {
     public String getETag( JSONObject json) {
+        return hash(json.toString());
+    }
 
-        String encoded=null;
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(json.toString().getBytes(StandardCharsets.UTF_8));
-            encoded = Base64.getEncoder().encodeToString(hash);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return "\""+encoded+"\"";
+    /**
+     * Hash-tree eTag of a single node, built from its own scalar fields and the
+     * eTags of its children. A change anywhere below a node therefore changes
+     * the eTag of every ancestor, and nothing else.
+     */
+    public String getETag(Map<String, String> fields, Map<String, ? extends Collection<String>> childETags) {
+        StringBuilder content = new StringBuilder();
+        new TreeMap<>(fields).forEach((name, value) -> content.append(name).append('=').append(value).append('\n'));
+        new TreeMap<>(childETags).forEach((attribute, eTags) -> {
+            // Children live in Redis sets, so their order carries no meaning
+            List<String> sorted = new ArrayList<>();
+            for (String eTag : eTags) sorted.add(String.valueOf(eTag));
+            Collections.sort(sorted);
+            content.append(attribute).append("->").append(String.join(",", sorted)).append('\n');
+        });
+        return hash(content.toString());
     }
 
     public boolean verifyETag(JSONObject json, List<String> etags) {
@@ -31,5 +39,16 @@ public class ETagService {
         return etags.contains(encoded);
 
     }
-}
 
+    private String hash(String content) {
+        String encoded=null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+            encoded = Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return "\""+encoded+"\"";
+    }
+}
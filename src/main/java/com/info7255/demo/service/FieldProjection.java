@@ -0,0 +1,32 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes to read from an object, parsed from a {@code fields} list such
+ * as {@code planCostShares,linkedPlanServices.linkedService.name}. Dots step into
+ * child objects; an attribute named without going further is read whole.
+ */
+class FieldProjection {
+    final Map<String, FieldProjection> attributes = new LinkedHashMap<>();
+    boolean whole;
+
+    static FieldProjection parse(String fields) {
+        FieldProjection root = new FieldProjection();
+        for (String path : fields.split(",")) {
+            path = path.trim();
+            if (path.isEmpty()) continue;
+            FieldProjection projection = root;
+            for (String attribute : path.split("\\.")) {
+                if (attribute.isEmpty()) throw new BadRequestException("Invalid field path " + path);
+                projection = projection.attributes.computeIfAbsent(attribute, k -> new FieldProjection());
+            }
+            projection.whole = true;
+        }
+        if (root.attributes.isEmpty()) throw new BadRequestException("fields must name at least one attribute");
+        return root;
+    }
+}
@@ -1,392 +1,603 @@
 package com.info7255.demo.service;
 
-import org.elasticsearch.action.DocWriteResponse;
+import com.info7255.demo.model.IndexingMessage;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CreateIndexRequest;
-import org.elasticsearch.client.indices.CreateIndexResponse;
-import org.elasticsearch.client.indices.GetIndexRequest;
-import org.elasticsearch.common.settings.Settings;
-//import org.elasticsearch.xcontent.XContentBuilder;
-//import org.elasticsearch.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies indexing messages to the index. Messages are acknowledged by hand once
+ * the index has accepted all of their writes, and rejected, which dead-letters
+ * them, when any write fails, so no update is lost while its message is gone.
+ */
 @Component
-public class IndexingListener {
-    private final RestHighLevelClient client;
-    private static final String INDEX_NAME = "plan-index";
-    private static LinkedHashMap<String, Map<String, Object>> MapOfDocuments = new LinkedHashMap<>();
-    private static ArrayList<String> listOfKeys = new ArrayList<>();
+public class IndexingListener implements ChannelAwareMessageListener {
+    private static final Logger logger = LoggerFactory.getLogger(IndexingListener.class);
 
-    public IndexingListener(RestHighLevelClient client) {
+    private final RestHighLevelClient client;
+    private final IndexingMessageConverter messageConverter;
+    private final PlanIndexManager indexManager;
+    private final BulkProcessor bulkProcessor;
+    private final PlanDocumentFlattener flattener;
+    private final Object bulkMonitor = new Object();
+    private int bulksInFlight;
+
+    private final IndexingPipelineMonitor pipelineMonitor;
+    private final SearchResultCache searchCache;
+    private final MeterRegistry registry;
+    private final Timer flattenTimer;
+    private final Timer bulkTimer;
+    private final Counter bulkRetries;
+    // The message each write queued in the bulk processor belongs to, until the bulk holding it completes
+    private final Map<DocWriteRequest<?>, AwaitingAck> awaitingAck = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Long, BulkInFlight> bulks = new ConcurrentHashMap<>();
+    // First attempts of each bulk; any other request the processor sends is a retry
+    private final Set<BulkRequest> firstAttempts = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+
+    // Coalescing stage, enabled when the window is positive
+    private final long coalesceWindowMs;
+    private final Object pendingLock = new Object();
+    // Serializes applying held messages so a plan's changes never go out of order
+    private final Object flushLock = new Object();
+    private Map<String, PendingChanges> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService coalesceScheduler;
+    private final Counter coalescedMessages;
+    private final Counter appliedMessages;
+
+    public IndexingListener(RestHighLevelClient client,
+                            IndexingMessageConverter messageConverter,
+                            PlanIndexManager indexManager,
+                            PlanDocumentFlattener flattener,
+                            IndexingPipelineMonitor pipelineMonitor,
+                            SearchResultCache searchCache,
+                            MeterRegistry registry,
+                            @Value("${medicalplan.indexing.coalesce-window-ms:0}") long coalesceWindowMs,
+                            @Value("${elasticsearch.bulk.actions:500}") int bulkActions,
+                            @Value("${elasticsearch.bulk.flush-interval-ms:1000}") long flushIntervalMs,
+                            @Value("${elasticsearch.bulk.concurrent-requests:1}") int concurrentRequests,
+                            @Value("${elasticsearch.bulk.backoff-initial-ms:100}") long backoffInitialMs,
+                            @Value("${elasticsearch.bulk.max-retries:5}") int maxRetries) {
         this.client = client;
+        this.messageConverter = messageConverter;
+        this.indexManager = indexManager;
+        this.flattener = flattener;
+        this.pipelineMonitor = pipelineMonitor;
+        this.searchCache = searchCache;
+        this.registry = registry;
+        this.flattenTimer = Timer.builder("indexing.flatten")
+                .description("Time to turn a plan into index documents")
+                .register(registry);
+        this.bulkTimer = Timer.builder("indexing.bulk")
+                .description("Time from sending a bulk request to its completion, retries included")
+                .register(registry);
+        this.bulkRetries = Counter.builder("indexing.bulk.retries")
+                .description("Bulk requests resent for rejected items")
+                .register(registry);
+        // Rejected (429) items are retried with exponential backoff; refresh is left to the index refresh interval
+        this.bulkProcessor = BulkProcessor.builder(
+                        (request, bulkListener) -> {
+                            if (!firstAttempts.remove(request)) bulkRetries.increment();
+                            client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener);
+                        },
+                        new BulkLogger())
+                .setBulkActions(bulkActions)
+                .setFlushInterval(TimeValue.timeValueMillis(flushIntervalMs))
+                .setConcurrentRequests(concurrentRequests)
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(backoffInitialMs), maxRetries))
+                .build();
+
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.coalescedMessages = Counter.builder("indexing.messages.coalesced")
+                .description("Indexing messages superseded by a newer message for the same plan before being applied")
+                .register(registry);
+        this.appliedMessages = Counter.builder("indexing.messages.applied")
+                .description("Indexing messages applied to the index")
+                .register(registry);
+        if (coalesceWindowMs > 0) {
+            this.coalesceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "indexing-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            coalesceScheduler.scheduleWithFixedDelay(this::flushPending, coalesceWindowMs, coalesceWindowMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.coalesceScheduler = null;
+        }
     }
 
-    public void receiveMessage(Map<String, String> message) throws IOException {
-        System.out.println("Message received: " + message);
-        try {
-            String operation = message.get("operation");
-            String body = message.get("body");
-            JSONObject jsonBody = new JSONObject(body);
-
-            switch (operation) {
-                case "SAVE": {
-                    postDocument(jsonBody);
-                    break;
-                }
-                case "DELETE": {
-                    deleteDocument(jsonBody);
-                    break;
-                }
-            }
-        } catch (JSONException | NullPointerException e) {
-            // Handle JSON parsing errors or NullPointerExceptions
-            // Log the error and any relevant information
-            System.err.println("Error processing message: " + e.getMessage());
-            e.printStackTrace();
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (coalesceScheduler != null) {
+            coalesceScheduler.shutdown();
+            coalesceScheduler.awaitTermination(coalesceWindowMs + 5000, TimeUnit.MILLISECONDS);
+            flushPending();
         }
+        bulkProcessor.awaitClose(30, TimeUnit.SECONDS);
     }
 
-    private boolean indexExists() throws IOException {
-        GetIndexRequest request = new GetIndexRequest(INDEX_NAME);
-        return client.indices().exists(request, RequestOptions.DEFAULT);
+    /**
+     * Runs in manual acknowledge mode: the message stays unacknowledged until its
+     * writes complete, so the prefetch count bounds how many are in flight. A throw
+     * leaves it unsettled for the container's retry advice, which rejects it once
+     * the attempts are used up.
+     *
+     * With coalescing enabled, messages are held for up to one window and only the
+     * latest state of each plan is applied. A held message is acknowledged once a
+     * newer one for the plan supersedes it, or else once it is applied.
+     */
+    @Override
+    public void onMessage(Message amqpMessage, Channel channel) throws IOException {
+        IndexingMessage message = messageConverter.fromMessage(amqpMessage);
+        ReceivedMessage received = new ReceivedMessage(message, channel, amqpMessage.getMessageProperties().getDeliveryTag());
+        logger.debug("Message received: {} {} #{}", message.getOperation(), message.getPlanId(), message.getSequence());
+        registry.counter("indexing.messages.consumed", "operation", message.getOperation()).increment();
+        try {
+            receive(received);
+        } catch (IOException | RuntimeException e) {
+            // The retry advice delivers the message again as a new ReceivedMessage
+            received.release();
+            throw e;
+        }
     }
 
-    private void postDocument(JSONObject plan) throws IOException {
-        if (!indexExists()) {
-            createElasticIndex();
+    private void receive(ReceivedMessage received) throws IOException {
+        IndexingMessage message = received.message;
+        if (coalesceScheduler == null) {
+            apply(received);
+            return;
         }
 
-        MapOfDocuments = new LinkedHashMap<>();
-        convertMapToDocumentIndex(plan, "", "plan");
-
-        for (Map.Entry<String, Map<String, Object>> entry : MapOfDocuments.entrySet()) {
-            String parentId = entry.getKey().split(":")[0];
-            String objectId = entry.getKey().split(":")[1];
-            IndexRequest request = new IndexRequest(INDEX_NAME);
-            request.id(objectId);
-            request.source(entry.getValue());
-            request.routing(parentId);
-            request.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
-            IndexResponse indexResponse = client.index(request, RequestOptions.DEFAULT);
-            System.out.println("response id: " + indexResponse.getId() + " parent id: " + parentId);
+        synchronized (pendingLock) {
+            if (!message.isRefresh()) {
+                coalescedMessages.increment(pending.computeIfAbsent(message.getPlanId(), k -> new PendingChanges()).add(received));
+                return;
+            }
+        }
+        // The producer is waiting to see this change, so apply it now, after what was held for the plan
+        synchronized (flushLock) {
+            PendingChanges held;
+            synchronized (pendingLock) {
+                held = pending.remove(message.getPlanId());
+            }
+            if (held != null) held.applyTo(this);
+            apply(received);
         }
     }
 
-    private void deleteDocument(JSONObject jsonObject) throws IOException {
-        listOfKeys = new ArrayList<>();
-        convertToKeys(jsonObject);
-
-        for(String key : listOfKeys){
-            DeleteRequest request = new DeleteRequest(INDEX_NAME, key);
-            DeleteResponse deleteResponse = client.delete(
-                    request, RequestOptions.DEFAULT);
-            if (deleteResponse.getResult() == DocWriteResponse.Result.NOT_FOUND) {
-                System.out.println("Document " + key + " Not Found!!");
+    private void flushPending() {
+        synchronized (flushLock) {
+            Map<String, PendingChanges> toApply;
+            synchronized (pendingLock) {
+                if (pending.isEmpty()) return;
+                toApply = pending;
+                pending = new LinkedHashMap<>();
             }
+            for (PendingChanges changes : toApply.values()) changes.applyTo(this);
         }
     }
 
-    private Map<String, Map<String, Object>> convertToKeys(JSONObject jsonObject){
+    private void apply(ReceivedMessage received) throws IOException {
+        appliedMessages.increment();
+        IndexingMessage message = received.message;
+        switch (message.getOperation()) {
+            case IndexingPublisher.SAVE: {
+                postDocument(received);
+                break;
+            }
+            case IndexingPublisher.DELTA: {
+                applyDelta(received);
+                break;
+            }
+            case IndexingPublisher.DELETE: {
+                deleteDocument(received);
+                break;
+            }
+            default:
+                logger.warn("Ignoring unknown indexing operation {} for {}", message.getOperation(), message.getPlanId());
+                received.reject();
+        }
+    }
 
-        Map<String, Map<String, Object>> map = new HashMap<>();
-        Map<String, Object> valueMap = new HashMap<>();
+    private void postDocument(ReceivedMessage received) throws IOException {
+        IndexingMessage message = received.message;
+        indexManager.ensureIndex();
 
-        for (String key : jsonObject.keySet()) {
-            String redisKey = jsonObject.get("objectId").toString();
-            Object value = jsonObject.get(key);
+        List<String> indices = indexManager.writeIndices();
+        List<DocWriteRequest<?>> requests = new ArrayList<>();
+        flattenTimer.record(() -> flattener.flatten(message.getPayload(), (routing, id, source) -> {
+            for (String index : indices) requests.add(indexRequest(index, routing, id, source));
+        }));
+        submit(requests, received);
+    }
 
-            if (value instanceof JSONObject) {
-                convertToKeys((JSONObject) value);
-            } else if (value instanceof JSONArray) {
-                convertToKeysList((JSONArray) value);
-            } else {
-                valueMap.put(key, value);
-                map.put(redisKey, valueMap);
+    /**
+     * A payload keyed by another object is the subtree of a removed sub-object of the
+     * plan, whose documents are deleted by id through the bulk processor, in order
+     * with the plan's other writes. Otherwise the whole plan is deleted: every
+     * document indexed since plans were flattened is routed by the plan id, so a
+     * delete-by-query on that routing removes the join tree. Documents indexed
+     * before that were routed by their immediate parent, so the plan's own object
+     * ids, sent as the payload, are matched on every shard as well.
+     */
+    private void deleteDocument(ReceivedMessage received) throws IOException {
+        IndexingMessage message = received.message;
+        String planId = message.getPlanId();
+        Map<String, Object> subtree = message.getPayload();
+        if (subtree != null && !planId.equals(String.valueOf(subtree.get("objectId")))) {
+            List<DocWriteRequest<?>> requests = new ArrayList<>();
+            for (String index : indexManager.writeIndices()) {
+                flattener.forEachId(subtree, (routing, id) -> requests.add(new DeleteRequest(index, id).routing(planId)));
             }
+            submit(requests, received);
+            return;
+        }
+
+        // A sub-object that belonged to no plan is also keyed by its own id; its routing term just matches nothing
+        String[] indices = indexManager.writeIndices().toArray(new String[0]);
+        DeleteByQueryRequest request = new DeleteByQueryRequest(indices);
+        if (subtree == null) {
+            request.setRouting(planId);
+            request.setQuery(QueryBuilders.termQuery("_routing", planId));
+        } else {
+            List<String> ids = new ArrayList<>();
+            flattener.forEachId(subtree, (routing, id) -> ids.add(id));
+            request.setQuery(QueryBuilders.boolQuery()
+                    .should(QueryBuilders.termQuery("_routing", planId))
+                    .should(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0]))));
         }
+        request.setConflicts("proceed");
+        request.setRefresh(message.isRefresh());
 
-        listOfKeys.add(jsonObject.get("objectId").toString());
-        return map;
+        // Runs outside the bulk processor, so earlier writes for the plan must land first,
+        // and be refreshed, as the query only finds documents that are searchable
+        awaitQueuedBulks();
+        BulkByScrollResponse response;
+        try {
+            client.indices().refresh(new RefreshRequest(indices), RequestOptions.DEFAULT);
+            response = client.deleteByQuery(request, RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.NOT_FOUND) throw e;
+            // No index means nothing to delete
+            indexManager.markMissing();
+            received.ack();
+            return;
+        }
+        if (message.isRefresh()) searchCache.invalidateEverywhere();
+        else searchCache.invalidateAfterRefresh();
+        if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty()) {
+            logger.error("Delete of plan {} had failures: {} {}", planId, response.getBulkFailures(), response.getSearchFailures());
+            received.reject();
+            return;
+        }
+        received.ack();
+        logger.debug("Deleted {} documents of plan {}", response.getDeleted(), planId);
     }
 
-    private List<Object> convertToKeysList(JSONArray jsonArray) {
-        List<Object> list = new ArrayList<>();
-        for (Object value : jsonArray) {
-            if (value instanceof JSONArray) {
-                value = convertToKeysList((JSONArray) value);
-            } else if (value instanceof JSONObject) {
-                value = convertToKeys((JSONObject) value);
+    /**
+     * Indexes new objects whole, updates changed objects with just their changed
+     * fields, and deletes removed ones.
+     */
+    private void applyDelta(ReceivedMessage received) throws IOException {
+        indexManager.ensureIndex();
+        PlanDelta delta = PlanDelta.fromPayload(received.message.getPayload());
+        String routing = delta.getPlanId();
+
+        List<DocWriteRequest<?>> requests = new ArrayList<>();
+        for (String index : indexManager.writeIndices()) {
+            for (PlanDelta.Upsert upsert : delta.getUpserts()) {
+                Map<String, Object> source = new HashMap<>(upsert.getFields());
+                source.put(PlanDocumentFlattener.JOIN_FIELD, PlanDocumentFlattener.join(upsert.getRelation(), upsert.getParentId()));
+                if (upsert.isCreated()) {
+                    requests.add(indexRequest(index, routing, upsert.getId(), source));
+                } else {
+                    requests.add(new UpdateRequest(index, upsert.getId()).routing(routing).doc(source).docAsUpsert(true));
+                }
+            }
+            for (String id : delta.getRemovedIds()) {
+                requests.add(new DeleteRequest(index, id).routing(routing));
             }
-            list.add(value);
         }
-        return list;
+        submit(requests, received);
     }
 
+    /**
+     * Queues the writes of one message in the bulk processor, to be acknowledged when
+     * the last of them completes, or with a refresh sends them at once and waits until
+     * they are searchable.
+     */
+    private void submit(List<DocWriteRequest<?>> requests, ReceivedMessage received) throws IOException {
+        if (received.message.isRefresh() || requests.isEmpty()) {
+            BulkRequest bulkRequest = new BulkRequest();
+            bulkRequest.add(requests);
+            if (executeWithRefresh(bulkRequest)) received.ack();
+            else received.reject();
+            return;
+        }
+        // Registered before the writes are added, since adding can send a bulk straight away
+        AwaitingAck awaiting = new AwaitingAck(received, requests.size());
+        for (DocWriteRequest<?> request : requests) awaitingAck.put(request, awaiting);
+        for (DocWriteRequest<?> request : requests) bulkProcessor.add(request);
+    }
 
-    private Map<String, Map<String, Object>> convertMapToDocumentIndex (JSONObject jsonObject,
-                                                                        String parentId,
-                                                                        String objectName ) {
-
-        Map<String, Map<String, Object>> map = new HashMap<>();
-        Map<String, Object> valueMap = new HashMap<>();
-        Iterator<String> iterator = jsonObject.keys();
-
-        while (iterator.hasNext()){
-            String key = iterator.next();
-            String redisKey = jsonObject.get("objectType") + ":" + parentId;
-            Object value = jsonObject.get(key);
+    /**
+     * Settles the messages the writes of a completed bulk belong to. Items are matched
+     * by document id, since the response of a retried bulk is not in request order,
+     * so a failed item fails every message in the bulk that wrote that document.
+     */
+    private void completeWrites(BulkRequest request, Set<String> failedIds) {
+        for (DocWriteRequest<?> write : request.requests()) {
+            AwaitingAck awaiting = awaitingAck.remove(write);
+            if (awaiting != null) awaiting.writeCompleted(failedIds.contains(write.id()));
+        }
+    }
 
-            if (value instanceof JSONObject) {
+    private IndexRequest indexRequest(String index, String routing, String id, Map<String, Object> source) {
+        return new IndexRequest(index).id(id).routing(routing).source(source);
+    }
 
-                convertMapToDocumentIndex((JSONObject) value, jsonObject.get("objectId").toString(), key);
+    /**
+     * Sends the request on its own, returning once its documents are searchable, with
+     * whether every write succeeded.
+     */
+    private boolean executeWithRefresh(BulkRequest bulkRequest) throws IOException {
+        if (bulkRequest.numberOfActions() == 0) return true;
+        // Anything queued earlier for these documents must land first
+        awaitQueuedBulks();
+        bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+        BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        searchCache.invalidateEverywhere();
+        if (response.hasFailures()) {
+            checkForMissingIndex(response);
+            logger.error("Bulk request failed: {}", response.buildFailureMessage());
+            return false;
+        }
+        return true;
+    }
 
-            } else if (value instanceof JSONArray) {
+    /**
+     * Sends whatever the bulk processor has queued and waits for every bulk in flight to complete.
+     */
+    private void awaitQueuedBulks() throws IOException {
+        bulkProcessor.flush();
+        synchronized (bulkMonitor) {
+            try {
+                while (bulksInFlight > 0) bulkMonitor.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for queued bulk requests");
+            }
+        }
+    }
 
-                convertToList((JSONArray) value, jsonObject.get("objectId").toString(), key);
+    private void bulkCompleted() {
+        synchronized (bulkMonitor) {
+            bulksInFlight--;
+            bulkMonitor.notifyAll();
+        }
+    }
 
-            } else {
-                valueMap.put(key, value);
-                map.put(redisKey, valueMap);
+    private void checkForMissingIndex(BulkResponse response) {
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed() && item.getFailure().getStatus() == RestStatus.NOT_FOUND) {
+                indexManager.markMissing();
+                return;
             }
         }
+    }
 
-        Map<String, Object> temp = new HashMap<>();
-        if(objectName == "plan"){
-            valueMap.put("plan_join", objectName);
-        } else {
-            temp.put("name", objectName);
-            temp.put("parent", parentId);
-            valueMap.put("plan_join", temp);
+    /**
+     * What is held for one plan: an optional DELETE of the indexed plan, then the
+     * newest SAVE, then the deltas and sub-object deletes published after that SAVE,
+     * in order. Deltas are kept rather than merged since each one only makes sense
+     * on top of the last.
+     */
+    private static class PendingChanges {
+        private ReceivedMessage delete;
+        private ReceivedMessage save;
+        private final List<ReceivedMessage> deltas = new ArrayList<>();
+
+        /**
+         * Holds the message, acknowledging the held messages it made redundant, and
+         * returns how many there were.
+         */
+        int add(ReceivedMessage received) {
+            List<ReceivedMessage> superseded = new ArrayList<>();
+            switch (received.message.getOperation()) {
+                case IndexingPublisher.DELETE: {
+                    Map<String, Object> subtree = received.message.getPayload();
+                    if (subtree != null && !received.message.getPlanId().equals(String.valueOf(subtree.get("objectId")))) {
+                        // Removes one sub-object of the plan, so it is ordered like a delta
+                        deltas.add(received);
+                        break;
+                    }
+                    if (save != null) superseded.add(save);
+                    superseded.addAll(deltas);
+                    // Deleting a plan removes everything routed to it, so a second DELETE adds nothing
+                    if (delete == null) delete = received;
+                    else superseded.add(received);
+                    save = null;
+                    deltas.clear();
+                    break;
+                }
+                case IndexingPublisher.SAVE: {
+                    if (save != null) superseded.add(save);
+                    superseded.addAll(deltas);
+                    save = received;
+                    deltas.clear();
+                    break;
+                }
+                default:
+                    deltas.add(received);
+            }
+            superseded.forEach(ReceivedMessage::ack);
+            return superseded.size();
         }
 
-        String id = parentId + ":" + jsonObject.get("objectId").toString();
-        System.out.println(valueMap);
-        MapOfDocuments.put(id, valueMap);
+        /**
+         * Applies the held messages in order. One that cannot be applied is rejected
+         * rather than left unacknowledged, since nothing would retry it.
+         */
+        void applyTo(IndexingListener listener) {
+            List<ReceivedMessage> held = new ArrayList<>();
+            if (delete != null) held.add(delete);
+            if (save != null) held.add(save);
+            held.addAll(deltas);
+            for (ReceivedMessage received : held) {
+                try {
+                    listener.apply(received);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Failed to apply coalesced indexing message for {}", received.message.getPlanId(), e);
+                    received.reject();
+                }
+            }
+        }
+    }
 
+    /**
+     * A delivered message, settled exactly once: acknowledged once the index has
+     * accepted its writes, or rejected without requeueing, which dead-letters it.
+     */
+    private class ReceivedMessage {
+        private final IndexingMessage message;
+        private final Channel channel;
+        private final long deliveryTag;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private ReceivedMessage(IndexingMessage message, Channel channel, long deliveryTag) {
+            this.message = message;
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            pipelineMonitor.recordReceived(message.getPublishedAt());
+        }
 
-        return map;
-    }
+        void ack() {
+            if (!settled.compareAndSet(false, true)) return;
+            pipelineMonitor.recordSettled(message.getPublishedAt());
+            pipelineMonitor.recordAcknowledged(message.getPublishedAt());
+            try {
+                channel.basicAck(deliveryTag, false);
+            } catch (IOException | RuntimeException e) {
+                // The channel closed, so the broker redelivers the message; its writes are idempotent
+                logger.warn("Could not acknowledge indexing message for {}", message.getPlanId(), e);
+            }
+        }
 
-    private List<Object> convertToList(JSONArray array, String parentId, String objectName) {
-        List<Object> list = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            Object value = array.get(i);
-            if (value instanceof JSONArray) {
-                value = convertToList((JSONArray) value, parentId, objectName);
-            } else if (value instanceof JSONObject) {
-                value = convertMapToDocumentIndex((JSONObject) value, parentId, objectName);
+        void reject() {
+            if (!settled.compareAndSet(false, true)) return;
+            pipelineMonitor.recordSettled(message.getPublishedAt());
+            logger.error("Dead-lettering {} of {} #{}", message.getOperation(), message.getPlanId(), message.getSequence());
+            try {
+                channel.basicNack(deliveryTag, false, false);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not reject indexing message for {}", message.getPlanId(), e);
             }
-            list.add(value);
         }
-        return list;
+
+        /**
+         * Stops tracking a message that failed without being settled, leaving the
+         * container to settle it; writes of it still in flight no longer settle it.
+         */
+        void release() {
+            if (settled.compareAndSet(false, true)) pipelineMonitor.recordSettled(message.getPublishedAt());
+        }
     }
 
-    private void createElasticIndex() throws IOException {
-        CreateIndexRequest request = new CreateIndexRequest(INDEX_NAME);
-        request.settings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 1));
-        XContentBuilder mapped = getMapping();
-        System.out.println(mapped);
-        request.mapping(mapped);
-        CreateIndexResponse createIndexResponse = client.indices().create(request, RequestOptions.DEFAULT);
+    private static class AwaitingAck {
+        private final ReceivedMessage received;
+        private final AtomicInteger remainingWrites;
+        private volatile boolean failed;
 
-        boolean acknowledged = createIndexResponse.isAcknowledged();
-        System.out.println("Index Creation:" + acknowledged);
+        private AwaitingAck(ReceivedMessage received, int writes) {
+            this.received = received;
+            this.remainingWrites = new AtomicInteger(writes);
+        }
 
+        void writeCompleted(boolean writeFailed) {
+            if (writeFailed) failed = true;
+            if (remainingWrites.decrementAndGet() > 0) return;
+            if (failed) received.reject();
+            else received.ack();
+        }
     }
 
-    private XContentBuilder getMapping() throws IOException {
-
-        XContentBuilder builder = XContentFactory.jsonBuilder();
-        builder.startObject();
-        {
-            builder.startObject("properties");
-            {
-                builder.startObject("plan");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("planType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("creationDate");
-                        {
-                            builder.field("type", "date");
-                            builder.field("format", "MM-dd-yyyy");
-                        }
-                        builder.endObject();
-                        builder.startObject("planCostShares");
-                        {
-                            builder.startObject("properties");
-                            {
-                                builder.startObject("deductible");
-                                {
-                                    builder.field("type", "long");
-                                }
-                                builder.endObject();
-                                builder.startObject("_org");
-                                {
-                                    builder.field("type", "text");
-                                }
-                                builder.endObject();
-                                builder.startObject("copay");
-                                {
-                                    builder.field("type", "long");
-                                }
-                                builder.endObject();
-                                builder.startObject("objectId");
-                                {
-                                    builder.field("type", "keyword");
-                                }
-                                builder.endObject();
-                                builder.startObject("objectType");
-                                {
-                                    builder.field("type", "text");
-                                }
-                                builder.endObject();
-                            }
-                            builder.endObject();
-                        }
-                        builder.endObject();
-                        builder.startObject("linkedPlanServices");
-                        {
-                            builder.startObject("properties");
-                            {
-                                builder.startObject("_org");
-                                {
-                                    builder.field("type", "text");
-                                }
-                                builder.endObject();
-                                builder.startObject("objectId");
-                                {
-                                    builder.field("type", "keyword");
-                                }
-                                builder.endObject();
-                                builder.startObject("objectType");
-                                {
-                                    builder.field("type", "text");
-                                }
-                                builder.endObject();
-                                builder.startObject("linkedService");
-                                {
-                                    builder.startObject("properties");
-                                    {
-                                        builder.startObject("name");
-                                        {
-                                            builder.field("type", "text");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("_org");
-                                        {
-                                            builder.field("type", "text");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("objectId");
-                                        {
-                                            builder.field("type", "keyword");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("objectType");
-                                        {
-                                            builder.field("type", "text");
-                                        }
-                                        builder.endObject();
-                                    }
-                                    builder.endObject();
-                                }
-                                builder.endObject();
-                                builder.startObject("planserviceCostShares");
-                                {
-                                    builder.startObject("properties");
-                                    {
-                                        builder.startObject("deductible");
-                                        {
-                                            builder.field("type", "long");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("_org");
-                                        {
-                                            builder.field("type", "text");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("copay");
-                                        {
-                                            builder.field("type", "long");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("objectId");
-                                        {
-                                            builder.field("type", "keyword");
-                                        }
-                                        builder.endObject();
-                                        builder.startObject("objectType");
-                                        {
-                                            builder.field("type", "text");
-                                        }
-                                        builder.endObject();
-                                    }
-                                    builder.endObject();
-                                }
-                                builder.endObject();
-                            }
-                            builder.endObject();
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
-                builder.startObject("plan_join");
-                {
-                    builder.field("type", "join");
-                    builder.field("eager_global_ordinals", "true");
-                    builder.startObject("relations");
-                    {
-                        builder.array("plan", "planCostShares", "linkedPlanServices");
-                        builder.array("linkedPlanServices", "linkedService", "planserviceCostShares");
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
+    private static class BulkInFlight {
+        private final long startNanos = System.nanoTime();
+    }
+
+    private class BulkLogger implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            synchronized (bulkMonitor) {
+                bulksInFlight++;
             }
-            builder.endObject();
+            firstAttempts.add(request);
+            bulks.put(executionId, new BulkInFlight());
         }
-        builder.endObject();
 
-        return builder;
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            bulkCompleted();
+            BulkInFlight bulk = bulks.remove(executionId);
+            if (bulk != null) bulkTimer.record(System.nanoTime() - bulk.startNanos, TimeUnit.NANOSECONDS);
+            searchCache.invalidateAfterRefresh();
+            Set<String> failedIds = new HashSet<>();
+            if (response.hasFailures()) {
+                checkForMissingIndex(response);
+                logger.error("Bulk request {} had failures: {}", executionId, response.buildFailureMessage());
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) failedIds.add(item.getId());
+                }
+            }
+            completeWrites(request, failedIds);
+        }
 
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            bulkCompleted();
+            firstAttempts.remove(request);
+            BulkInFlight bulk = bulks.remove(executionId);
+            if (bulk != null) bulkTimer.record(System.nanoTime() - bulk.startNanos, TimeUnit.NANOSECONDS);
+            logger.error("Bulk request {} of {} actions failed", executionId, request.numberOfActions(), failure);
+            Set<String> failedIds = new HashSet<>();
+            for (DocWriteRequest<?> write : request.requests()) failedIds.add(write.id());
+            completeWrites(request, failedIds);
+        }
     }
-
-
-}
\ No newline at end of file
+}
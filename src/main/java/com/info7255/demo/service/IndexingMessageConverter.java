@@ -0,0 +1,142 @@
+package com.info7255.demo.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.info7255.demo.model.IndexingMessage;
+import org.json.JSONObject;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes {@link IndexingMessage}s as a versioned binary envelope:
+ *
+ * <pre>
+ * byte   version
+ * byte   flags        bit 0: payload is gzip-compressed, bit 1: refresh on apply
+ * UTF    operation
+ * UTF    plan id
+ * long   sequence
+ * long   published at, epoch millis (version 2 and later)
+ * int    payload length, 0 when there is no payload
+ * bytes  payload      the plan document as Smile
+ * </pre>
+ *
+ * Payloads larger than the compression threshold are gzipped. Messages in the
+ * old {@code Map<String,String>} format, still sitting in the legacy queue, are
+ * decoded into the same type.
+ */
+@Component
+public class IndexingMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE = "application/vnd.medicalplan.indexing";
+    static final byte VERSION = 2;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_REFRESH = 2;
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+    private final SimpleMessageConverter legacyConverter = new SimpleMessageConverter();
+    private final int compressionThreshold;
+
+    public IndexingMessageConverter(@Value("${medicalplan.indexing.compression-threshold-bytes:4096}") int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        if (!(object instanceof IndexingMessage)) {
+            throw new MessageConversionException("Cannot encode " + object.getClass().getName() + " as an indexing message");
+        }
+        IndexingMessage message = (IndexingMessage) object;
+        try {
+            byte[] payload = message.getPayload() == null ? new byte[0] : smileMapper.writeValueAsBytes(message.getPayload());
+            int flags = message.isRefresh() ? FLAG_REFRESH : 0;
+            if (payload.length > compressionThreshold) {
+                payload = gzip(payload);
+                flags |= FLAG_COMPRESSED;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeUTF(message.getOperation());
+            out.writeUTF(message.getPlanId());
+            out.writeLong(message.getSequence());
+            out.writeLong(message.getPublishedAt());
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+
+            messageProperties.setContentType(CONTENT_TYPE);
+            messageProperties.setHeader("version", (int) VERSION);
+            return new Message(bytes.toByteArray(), messageProperties);
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to encode indexing message for " + message.getPlanId(), e);
+        }
+    }
+
+    @Override
+    public IndexingMessage fromMessage(Message message) {
+        if (!CONTENT_TYPE.equals(message.getMessageProperties().getContentType())) {
+            return fromLegacy(legacyConverter.fromMessage(message));
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.getBody()))) {
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new MessageConversionException("Unsupported indexing message version " + version);
+            }
+            int flags = in.readUnsignedByte();
+            String operation = in.readUTF();
+            String planId = in.readUTF();
+            long sequence = in.readLong();
+            long publishedAt = version >= 2 ? in.readLong() : 0;
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+
+            Map<String, Object> document = null;
+            if (payload.length > 0) {
+                InputStream payloadStream = new ByteArrayInputStream(payload);
+                if ((flags & FLAG_COMPRESSED) != 0) payloadStream = new GZIPInputStream(payloadStream);
+                document = smileMapper.readValue(payloadStream, new TypeReference<Map<String, Object>>() {});
+            }
+            return new IndexingMessage(operation, planId, sequence, publishedAt, document, (flags & FLAG_REFRESH) != 0);
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to decode indexing message", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private IndexingMessage fromLegacy(Object converted) {
+        if (!(converted instanceof Map)) {
+            throw new MessageConversionException("Unrecognised indexing message " + converted);
+        }
+        Map<String, String> legacy = (Map<String, String>) converted;
+        Map<String, Object> document = new JSONObject(legacy.get("body")).toMap();
+        return new IndexingMessage(legacy.get("operation"), String.valueOf(document.get("objectId")), 0, 0, document,
+                Boolean.parseBoolean(legacy.get("refresh")));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,156 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.MedicalPlanApplication;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how far the index lags behind Redis, measured from the publish time
+ * stamped on each message to the index acknowledging it, and exposes queue
+ * depths. Write endpoints consult it to push back while the lag is over the
+ * configured limit. The current lag also counts messages still in flight, so
+ * it keeps growing while the index is down or consumers are stuck.
+ */
+@Component
+public class IndexingPipelineMonitor {
+
+    private final AmqpAdmin amqpAdmin;
+    private final Timer lagTimer;
+    private final long maxLagMs;
+    private final long retryAfterSeconds;
+    private final List<String> partitionQueues = new ArrayList<>();
+
+    private volatile long lastLagMs;
+    private volatile long lastAcknowledgedAt = System.currentTimeMillis();
+    // Publish times of the messages this instance has received but not yet settled, with their counts
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<>();
+    private volatile long queuedMessages;
+    private volatile long queuesCheckedAt;
+
+    public IndexingPipelineMonitor(MeterRegistry registry,
+                                   AmqpAdmin amqpAdmin,
+                                   @Value("${medicalplan.indexing.partitions:4}") int partitions,
+                                   @Value("${medicalplan.indexing.backpressure.max-lag-ms:0}") long maxLagMs,
+                                   @Value("${medicalplan.indexing.backpressure.retry-after-seconds:5}") long retryAfterSeconds) {
+        this.amqpAdmin = amqpAdmin;
+        this.maxLagMs = maxLagMs;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.lagTimer = Timer.builder("indexing.lag")
+                .description("Time from publishing an indexing message to the index acknowledging it")
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("indexing.lag.current", this, IndexingPipelineMonitor::currentLagMs)
+                .description("Age of the oldest indexing message in flight, or the lag of the last one acknowledged, in milliseconds")
+                .register(registry);
+
+        List<String> queues = new ArrayList<>();
+        queues.add(MedicalPlanApplication.queueName);
+        for (int partition = 0; partition < partitions; partition++) {
+            queues.add(MedicalPlanApplication.partitionQueueName(partition));
+            partitionQueues.add(MedicalPlanApplication.partitionQueueName(partition));
+        }
+        // Each scrape asks the broker, so these are only as fresh as the scrape interval
+        for (String queue : queues) {
+            Gauge.builder("indexing.queue.depth", this, monitor -> monitor.queueDepth(queue))
+                    .tag("queue", queue)
+                    .register(registry);
+        }
+        Gauge.builder("indexing.dlq.depth", this, monitor -> monitor.queueDepth(MedicalPlanApplication.deadLetterQueueName))
+                .tag("queue", MedicalPlanApplication.deadLetterQueueName)
+                .register(registry);
+    }
+
+    /**
+     * Called when a message published at {@code publishedAt} is delivered to this instance.
+     */
+    public void recordReceived(long publishedAt) {
+        if (publishedAt <= 0) return;
+        synchronized (inFlight) {
+            inFlight.merge(publishedAt, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Called when a delivered message is acknowledged, rejected or given up on.
+     */
+    public void recordSettled(long publishedAt) {
+        if (publishedAt <= 0) return;
+        synchronized (inFlight) {
+            inFlight.computeIfPresent(publishedAt, (time, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Called once the index has acknowledged the writes of a message published at {@code publishedAt}.
+     */
+    public void recordAcknowledged(long publishedAt) {
+        if (publishedAt <= 0) return;
+        long now = System.currentTimeMillis();
+        long lag = Math.max(0, now - publishedAt);
+        lagTimer.record(lag, TimeUnit.MILLISECONDS);
+        lastLagMs = lag;
+        lastAcknowledgedAt = now;
+    }
+
+    /**
+     * The age of the oldest message in flight here, or the lag of the last acknowledged
+     * message if that is larger and recent. Once no message has been acknowledged for
+     * the retry-after period, the pipeline only counts as caught up if the partition
+     * queues are empty too; otherwise the lag is the time since the last acknowledgement,
+     * which keeps growing until consumers make progress again.
+     */
+    public long currentLagMs() {
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        synchronized (inFlight) {
+            if (!inFlight.isEmpty()) lag = now - inFlight.firstKey();
+        }
+        long sinceAcknowledged = now - lastAcknowledgedAt;
+        if (sinceAcknowledged <= TimeUnit.SECONDS.toMillis(retryAfterSeconds)) return Math.max(lag, lastLagMs);
+        if (lag == 0 && queuedMessages(now) > 0) lag = sinceAcknowledged;
+        return lag;
+    }
+
+    public boolean isOverloaded() {
+        return maxLagMs > 0 && currentLagMs() > maxLagMs;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Messages waiting in the partition queues, asked of the broker at most once a second.
+     */
+    private long queuedMessages(long now) {
+        if (now - queuesCheckedAt < 1000) return queuedMessages;
+        long total = 0;
+        for (String queue : partitionQueues) {
+            double depth = queueDepth(queue);
+            if (!Double.isNaN(depth)) total += (long) depth;
+        }
+        queuedMessages = total;
+        queuesCheckedAt = now;
+        return total;
+    }
+
+    private double queueDepth(String queue) {
+        try {
+            QueueInformation information = amqpAdmin.getQueueInfo(queue);
+            return information == null ? Double.NaN : information.getMessageCount();
+        } catch (AmqpException e) {
+            return Double.NaN;
+        }
+    }
+}
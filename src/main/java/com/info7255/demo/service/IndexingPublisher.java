@@ -0,0 +1,87 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.MedicalPlanApplication;
+import com.info7255.demo.model.IndexingMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes indexing messages. Each plan id always maps to the same partition
+ * queue, and every partition has a single consumer, so the messages for one
+ * plan are indexed in the order they were published. Messages are encoded by
+ * {@link IndexingMessageConverter}.
+ */
+@Component
+public class IndexingPublisher {
+    private static final Logger logger = LoggerFactory.getLogger(IndexingPublisher.class);
+
+    public static final String SAVE = "SAVE";
+    public static final String DELETE = "DELETE";
+    // Payload is a PlanDelta
+    public static final String DELTA = "DELTA";
+
+    private final RabbitTemplate template;
+    private final int partitions;
+    // Seeded from the clock so numbers keep increasing across restarts
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final MeterRegistry registry;
+    private final Map<String, Counter> published = new ConcurrentHashMap<>();
+
+    public IndexingPublisher(RabbitTemplate template,
+                             MeterRegistry registry,
+                             @Value("${medicalplan.indexing.partitions:4}") int partitions) {
+        this.template = template;
+        this.registry = registry;
+        this.partitions = partitions;
+    }
+
+    public void publish(String operation, String planId, Map<String, Object> document) {
+        publish(operation, planId, document, false);
+    }
+
+    /**
+     * With {@code refresh}, the listener writes the change at once, skipping the bulk
+     * processor and any coalescing window, and refreshes so it is searchable on completion.
+     */
+    public void publish(String operation, String planId, Map<String, Object> document, boolean refresh) {
+        IndexingMessage message = message(operation, planId, document, refresh);
+        logger.debug("Sending {} for {}", operation, planId);
+        template.convertAndSend(MedicalPlanApplication.topicExchangeName, routingKey(planId), message);
+    }
+
+    /**
+     * Publishes one message per plan over a single channel.
+     */
+    public void publishAll(String operation, Map<String, Map<String, Object>> documentsByPlanId) {
+        if (documentsByPlanId.isEmpty()) return;
+        template.invoke(operations -> {
+            documentsByPlanId.forEach((planId, document) ->
+                    operations.convertAndSend(MedicalPlanApplication.topicExchangeName, routingKey(planId), message(operation, planId, document, false)));
+            return null;
+        });
+        logger.debug("Sent {} {} messages", documentsByPlanId.size(), operation);
+    }
+
+    private String routingKey(String planId) {
+        return MedicalPlanApplication.partitionQueueName(Math.floorMod(planId.hashCode(), partitions));
+    }
+
+    private IndexingMessage message(String operation, String planId, Map<String, Object> document, boolean refresh) {
+        published.computeIfAbsent(operation, k -> Counter.builder("indexing.messages.published")
+                .description("Indexing messages published")
+                .tag("operation", k)
+                .register(registry)).increment();
+        // Stamped here so the listener can measure lag all the way to the index acknowledgement
+        return new IndexingMessage(operation, planId, sequence.incrementAndGet(), System.currentTimeMillis(), document, refresh);
+    }
+}
@@ -0,0 +1,32 @@
+package com.info7255.demo.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JSON Merge Patch (RFC 7386) over documents held as maps: objects in the patch
+ * are merged member by member, a {@code null} member removes the target member,
+ * and any other value, arrays included, replaces the target value outright.
+ */
+final class JsonMergePatch {
+
+    private JsonMergePatch() {
+    }
+
+    /**
+     * Returns {@code target} with {@code patch} applied. Neither argument is modified.
+     */
+    @SuppressWarnings("unchecked")
+    static Object apply(Object target, Object patch) {
+        if (!(patch instanceof Map)) return patch;
+
+        Map<String, Object> merged = target instanceof Map
+                ? new LinkedHashMap<>((Map<String, Object>) target)
+                : new LinkedHashMap<>();
+        ((Map<String, Object>) patch).forEach((member, value) -> {
+            if (value == null) merged.remove(member);
+            else merged.put(member, apply(merged.get(member), value));
+        });
+        return merged;
+    }
+}
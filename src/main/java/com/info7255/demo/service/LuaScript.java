@@ -0,0 +1,45 @@
+package com.info7255.demo.service;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A Lua script loaded from the classpath and invoked by its SHA1. The script is
+ * registered lazily and re-registered when Redis reports it missing, e.g. after
+ * a restart or SCRIPT FLUSH.
+ */
+public class LuaScript {
+    private final String source;
+    private volatile String sha;
+
+    public LuaScript(String resourcePath) {
+        try (InputStream inputStream = getClass().getResourceAsStream(resourcePath)) {
+            if (inputStream == null) throw new IllegalStateException("Script not found: " + resourcePath);
+            this.source = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        String currentSha = sha;
+        if (currentSha == null) {
+            currentSha = load(jedis);
+        }
+        try {
+            return jedis.evalsha(currentSha, keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.evalsha(load(jedis), keys, args);
+        }
+    }
+
+    private String load(Jedis jedis) {
+        sha = jedis.scriptLoad(source);
+        return sha;
+    }
+}
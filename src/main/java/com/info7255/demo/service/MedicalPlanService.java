@@ -1,142 +1,687 @@
 package com.info7255.demo.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.json.JSONArray;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.info7255.demo.exception.BadRequestException;
+import com.info7255.demo.exception.ConflictException;
+import com.info7255.demo.exception.PreconditionFailedException;
+import com.info7255.demo.exception.ResourceNotFoundException;
+import com.info7255.demo.model.PlanPage;
+import com.info7255.demo.validator.JsonValidator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.everit.json.schema.ValidationException;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 @Service
 public class MedicalPlanService {
-    private final Jedis redisClient;
+    private static final Logger logger = LoggerFactory.getLogger(MedicalPlanService.class);
+
+    static final String PLAN_PREFIX = "plan:";
+    // Sorted set of top-level plan ids, all with score 0 so they page in lexicographic order
+    static final String PLAN_INDEX_KEY = "index:plan";
+    // Hash per node mapping each child attribute to OBJECT_LINK or ARRAY_LINK
+    static final String LINKS_PREFIX = "links:";
+    static final String OBJECT_LINK = "object";
+    static final String ARRAY_LINK = "array";
+    // Serialized copy of a whole top-level plan, kept when blob storage is enabled
+    static final String BLOB_PREFIX = "blob:";
+    // Hash of sub-object key -> key of the object that links to it
+    static final String PARENT_INDEX_KEY = "index:parent";
+    // Bounds the walk up from a sub-object to its plan, should parent links ever form a cycle
+    private static final int MAX_DEPTH = 32;
+
+    private final RedisConnectionManager redis;
     private final ETagService eTagManager;
+    private final PlanCache planCache;
+    private final RedisCommandMetrics commands;
+    private final JsonValidator validator;
+    private final DistributionSummary writeCommands;
+    private final boolean scriptedReads;
+    private final boolean blobStorage;
+    private final Timer readTimer;
 
     private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final ObjectMapper blobMapper = new ObjectMapper(new SmileFactory());
+    private final LuaScript fetchPlanScript = new LuaScript("/scripts/fetch-plan.lua");
 
-    public MedicalPlanService(Jedis redisClient, ETagService eTagManager) {
-        this.redisClient = redisClient;
+    public MedicalPlanService(RedisConnectionManager redis,
+                              ETagService eTagManager,
+                              PlanCache planCache,
+                              RedisCommandMetrics commands,
+                              JsonValidator validator,
+                              MeterRegistry registry,
+                              @Value("${medicalplan.redis.read-mode:script}") String readMode,
+                              @Value("${medicalplan.redis.storage-mode:hash}") String storageMode) {
+        this.redis = redis;
         this.eTagManager = eTagManager;
+        this.planCache = planCache;
+        this.commands = commands;
+        this.validator = validator;
+        this.writeCommands = DistributionSummary.builder("plan.write.commands")
+                .description("Redis commands sent per plan write")
+                .register(registry);
+        this.scriptedReads = "script".equalsIgnoreCase(readMode);
+        this.blobStorage = "hash-and-blob".equalsIgnoreCase(storageMode);
+        // Tagged by mode so the scripted and recursive readers can be compared under the same load
+        this.readTimer = Timer.builder("plan.read")
+                .description("Time to reassemble an object graph from Redis")
+                .tag("mode", scriptedReads ? "script" : "recursive")
+                .register(registry);
     }
 
     public boolean checkIfKeyExists(String key) {
-        Map<String, String> data = redisClient.hgetAll(key);
-        redisClient.close();
-        return !(data == null || data.isEmpty());
+        return redis.execute("HLEN", jedis -> jedis.hlen(key) > 0);
     }
 
     public String fetchETag(String key) {
-        return redisClient.hget(key, "eTag");
+        return redis.execute("HGET", jedis -> jedis.hget(key, "eTag"));
     }
 
-    public String updateETag(String key, JSONObject planData) {
-        String eTag = eTagManager.getETag(planData);
-        redisClient.hset(key, "eTag", eTag);
+    public String addNewPlan(JSONObject planDetails, String planId) {
+        RedisWriteBatch batch = new RedisWriteBatch();
+        String eTag = queueNewPlan(batch, planDetails, planId);
+        redis.run(jedis -> commit(jedis, batch, planId));
         return eTag;
     }
 
-    public String addNewPlan(JSONObject planDetails, String planId) {
-        convertJsonToRedisData(planDetails);
-        return updateETag(planId, planDetails);
+    /**
+     * Writes many new plans in one MULTI/EXEC. Returns the eTag of each plan by key.
+     */
+    public Map<String, String> addNewPlans(Map<String, JSONObject> plansByKey) {
+        Map<String, String> eTags = new LinkedHashMap<>();
+        if (plansByKey.isEmpty()) return eTags;
+
+        RedisWriteBatch batch = new RedisWriteBatch();
+        plansByKey.forEach((planId, planDetails) -> eTags.put(planId, queueNewPlan(batch, planDetails, planId)));
+        redis.run(jedis -> commit(jedis, batch, plansByKey.size() + " plans"));
+        return eTags;
+    }
+
+    /**
+     * Of the given keys, the ones that already hold an object, checked in one pipelined round trip.
+     */
+    public Set<String> findExistingKeys(Collection<String> keys) {
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Long>> lengths = new LinkedHashMap<>();
+            for (String key : keys) lengths.put(key, pipeline.hlen(key));
+            commands.record("PIPELINE", lengths.size(), pipeline::sync);
+
+            Set<String> existing = new HashSet<>();
+            lengths.forEach((key, length) -> {
+                if (length.get() > 0) existing.add(key);
+            });
+            return existing;
+        });
+    }
+
+    /**
+     * Applies {@code patch} to the stored plan as a JSON Merge Patch (RFC 7386), validates
+     * the merged plan and writes only what changed: the differing hash fields, link set
+     * members and removed subtrees, together with the eTags of the changed nodes and
+     * their ancestors, in one MULTI/EXEC. Returns what changed, with the plan's new eTag,
+     * so the index can apply just those objects.
+     *
+     * <p>{@code ifMatch} is checked against the eTag of the plan as loaded under WATCH,
+     * so a write landing after the check fails the transaction instead of being lost.
+     *
+     * @throws PreconditionFailedException when the stored eTag is not in {@code ifMatch}
+     */
+    @SuppressWarnings("unchecked")
+    public PlanDelta updatePlan(JSONObject patch, String planId, Collection<String> ifMatch) {
+        Map<String, Object> patchDocument = patch.toMap();
+
+        return redis.execute(jedis -> {
+            // Any write to the plan lands on its hash, so this guards the stored tree the patch is applied to
+            commands.record("WATCH", () -> jedis.watch(planId));
+            Map<String, Object> storedDocument = loadStoredDocument(jedis, planId);
+            if (storedDocument == null) {
+                commands.record("UNWATCH", jedis::unwatch);
+                throw new ResourceNotFoundException("Plan not found!");
+            }
+            String storedETag = String.valueOf(storedDocument.get("eTag"));
+            if (!ifMatch.contains(storedETag)) {
+                commands.record("UNWATCH", jedis::unwatch);
+                throw new PreconditionFailedException(storedETag);
+            }
+            Map<String, Object> current = validator.restoreTypes(readableView(storedDocument));
+            Map<String, Object> mergedDocument = (Map<String, Object>) JsonMergePatch.apply(current, patchDocument);
+            try {
+                validator.validateJsonSchema(new JSONObject(mergedDocument));
+            } catch (ValidationException e) {
+                commands.record("UNWATCH", jedis::unwatch);
+                throw new BadRequestException("Bad Request: Json not validated");
+            }
+
+            PlanNode stored = PlanNode.of(storedDocument);
+            PlanNode merged = PlanNode.of(mergedDocument);
+            if (!merged.key.equals(planId)) {
+                commands.record("UNWATCH", jedis::unwatch);
+                throw new BadRequestException("A patch cannot change the objectType or objectId of the plan");
+            }
+
+            RedisWriteBatch batch = new RedisWriteBatch();
+            queueNodeChanges(batch, merged, stored, nodeKeys(merged, new HashSet<>()));
+            PlanDelta delta = PlanDelta.between(current, mergedDocument);
+            delta.setETag(merged.eTag);
+            if (merged.eTag.equals(stored.eTag)) {
+                commands.record("UNWATCH", jedis::unwatch);
+                return delta;
+            }
+            // The blob is rebuilt from the hashes on the next read
+            batch.del(BLOB_PREFIX + planId);
+            commit(jedis, batch, planId);
+            return delta;
+        });
+    }
+
+    /**
+     * A document read back raw, without its eTags. Scalars are still strings; the
+     * validator gives them back the types the schema declares.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readableView(Map<String, Object> raw) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        raw.forEach((attribute, value) -> {
+            if ("eTag".equals(attribute)) return;
+            if (value instanceof Map) {
+                view.put(attribute, readableView((Map<String, Object>) value));
+            } else if (value instanceof List) {
+                List<Object> items = new ArrayList<>();
+                for (Object item : (List<Object>) value) {
+                    items.add(item instanceof Map ? readableView((Map<String, Object>) item) : item);
+                }
+                view.put(attribute, items);
+            } else {
+                view.put(attribute, value);
+            }
+        });
+        return view;
+    }
+
+    private String queueNewPlan(RedisWriteBatch batch, JSONObject planDetails, String planId) {
+        PlanNode plan = PlanNode.of(planDetails.toMap());
+        computeETags(plan);
+        // Like a patch, drop any blob so the next read rebuilds it from the hashes in their stored form
+        if (blobStorage && isPlanKey(planId)) batch.del(BLOB_PREFIX + planId);
+        queuePlanWrites(batch, plan, planId);
+        return plan.eTag;
+    }
+
+    private void queuePlanWrites(RedisWriteBatch batch, PlanNode plan, String planId) {
+        queueNodeWrites(batch, plan);
+        if (isPlanKey(planId)) batch.zadd(PLAN_INDEX_KEY, 0, planId.substring(PLAN_PREFIX.length()));
+    }
+
+    private void commit(Jedis jedis, RedisWriteBatch batch, String description) {
+        Set<String> nodeKeys = new LinkedHashSet<>();
+        for (String key : batch.hashKeys()) {
+            if (isNodeKey(key)) nodeKeys.add(key);
+        }
+        // Removed objects must leave every instance's cache too
+        for (String key : batch.deletedKeys()) {
+            if (isNodeKey(key)) nodeKeys.add(key);
+        }
+        batch.publish(PlanCache.INVALIDATION_CHANNEL, String.join(" ", nodeKeys));
+
+        // The flattened graph and its eTags become visible together or not at all
+        if (commands.record("MULTI", batch.commandCount(), () -> batch.exec(jedis)) == null) {
+            throw new ConflictException("Plan was modified concurrently, retry the request.");
+        }
+        planCache.invalidate(nodeKeys);
+        writeCommands.record(batch.commandCount());
+        logger.debug("Wrote {} using {} Redis commands", description, batch.commandCount());
+    }
+
+    private void queueNodeWrites(RedisWriteBatch batch, PlanNode node) {
+        node.fields.forEach((field, value) -> batch.hset(node.key, field, value));
+        batch.hset(node.key, "eTag", node.eTag);
+        node.linkKinds.forEach((attribute, kind) -> batch.hset(LINKS_PREFIX + node.key, attribute, kind));
+        node.children.forEach((attribute, children) -> {
+            for (PlanNode child : children) {
+                batch.sadd(node.key + ":" + attribute, child.key);
+                batch.hset(PARENT_INDEX_KEY, child.key, node.key);
+                queueNodeWrites(batch, child);
+            }
+        });
+    }
+
+    /**
+     * Sets the eTag of every node in {@code node}, bottom-up.
+     */
+    private void computeETags(PlanNode node) {
+        node.children.values().forEach(children -> children.forEach(this::computeETags));
+        node.eTag = eTagOf(node);
+    }
+
+    /**
+     * The eTag of a node from its own fields and the eTags its children already carry.
+     */
+    private String eTagOf(PlanNode node) {
+        Map<String, Collection<String>> childETags = new HashMap<>();
+        node.children.forEach((attribute, children) -> {
+            List<String> eTags = new ArrayList<>();
+            for (PlanNode child : children) eTags.add(child.eTag);
+            childETags.put(attribute, eTags);
+        });
+        return eTagManager.getETag(node.fields, childETags);
+    }
+
+    /**
+     * Queues the writes that turn {@code stored} into {@code merged} and sets the eTag of
+     * every merged node, bottom-up. A node whose fields, links and child eTags are all
+     * unchanged keeps its stored eTag and gets no writes, so a patch rehashes and rewrites
+     * only the patched nodes and their ancestors, and the ancestors only their eTag.
+     */
+    private void queueNodeChanges(RedisWriteBatch batch, PlanNode merged, PlanNode stored, Set<String> mergedKeys) {
+        if (stored == null) {
+            computeETags(merged);
+            queueNodeWrites(batch, merged);
+            return;
+        }
+
+        boolean changed = !merged.fields.equals(stored.fields) || !merged.linkKinds.equals(stored.linkKinds);
+        for (Map.Entry<String, List<PlanNode>> entry : merged.children.entrySet()) {
+            String attribute = entry.getKey();
+            for (PlanNode child : entry.getValue()) {
+                PlanNode storedChild = stored.child(attribute, child.key);
+                if (storedChild == null) {
+                    batch.sadd(merged.key + ":" + attribute, child.key);
+                    batch.hset(PARENT_INDEX_KEY, child.key, merged.key);
+                }
+                queueNodeChanges(batch, child, storedChild, mergedKeys);
+                if (storedChild == null || !child.eTag.equals(storedChild.eTag)) changed = true;
+            }
+        }
+        for (Map.Entry<String, List<PlanNode>> entry : stored.children.entrySet()) {
+            for (PlanNode child : entry.getValue()) {
+                if (merged.child(entry.getKey(), child.key) != null) continue;
+                batch.srem(stored.key + ":" + entry.getKey(), child.key);
+                // An object the patch moved under another attribute keeps its hashes
+                if (!mergedKeys.contains(child.key)) queueNodeRemoval(batch, child, mergedKeys);
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            merged.eTag = stored.eTag;
+            return;
+        }
+        merged.eTag = eTagOf(merged);
+        merged.fields.forEach((field, value) -> {
+            if (!value.equals(stored.fields.get(field))) batch.hset(merged.key, field, value);
+        });
+        for (String field : stored.fields.keySet()) {
+            if (!merged.fields.containsKey(field)) batch.hdel(merged.key, field);
+        }
+        batch.hset(merged.key, "eTag", merged.eTag);
+        merged.linkKinds.forEach((attribute, kind) -> {
+            if (!kind.equals(stored.linkKinds.get(attribute))) batch.hset(LINKS_PREFIX + merged.key, attribute, kind);
+        });
+        for (String attribute : stored.linkKinds.keySet()) {
+            if (!merged.linkKinds.containsKey(attribute)) batch.hdel(LINKS_PREFIX + merged.key, attribute);
+        }
+    }
+
+    private void queueNodeRemoval(RedisWriteBatch batch, PlanNode node, Set<String> mergedKeys) {
+        batch.del(node.key);
+        batch.del(LINKS_PREFIX + node.key);
+        batch.hdel(PARENT_INDEX_KEY, node.key);
+        node.children.forEach((attribute, children) -> {
+            batch.del(node.key + ":" + attribute);
+            for (PlanNode child : children) {
+                if (!mergedKeys.contains(child.key)) queueNodeRemoval(batch, child, mergedKeys);
+            }
+        });
+    }
+
+    private Set<String> nodeKeys(PlanNode node, Set<String> keys) {
+        keys.add(node.key);
+        node.children.values().forEach(children -> children.forEach(child -> nodeKeys(child, keys)));
+        return keys;
+    }
+
+    private Map<String, Object> loadStoredDocument(Jedis jedis, String key) {
+        Object document = commands.record("EVALSHA",
+                () -> fetchPlanScript.eval(jedis, Collections.singletonList(key), Collections.singletonList("raw")));
+        if (document == null) return null;
+        try {
+            return jsonMapper.readValue(document.toString(), new TypeReference<Map<String, Object>>() {});
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Cached variant for callers that already hold the object's current eTag.
+     */
+    public Map<String, Object> retrievePlanDetails(String key, String eTag) {
+        Map<String, Object> cached = planCache.get(key, eTag);
+        if (cached != null) return cached;
+
+        Map<String, Object> planData = retrievePlanDetails(key);
+        planCache.put(key, eTag, planData);
+        return planData;
     }
 
     public Map<String, Object> retrievePlanDetails(String planId) {
-        Map<String, Object> planData = new HashMap<>();
-        managePlanData(planId, planData, false);
+        return readTimer.record(() -> redis.execute(jedis ->
+                blobStorage && isPlanKey(planId) ? readPlanBlob(jedis, planId) : assemble(jedis, planId)));
+    }
+
+    private Map<String, Object> assemble(Jedis jedis, String key) {
+        if (!scriptedReads) {
+            return managePlanData(jedis, key, new HashMap<>(), false);
+        }
+        Object document = commands.record("EVALSHA",
+                () -> fetchPlanScript.eval(jedis, Collections.singletonList(key), Collections.emptyList()));
+        if (document == null) return new HashMap<>();
+        try {
+            return jsonMapper.readValue(document.toString(), new TypeReference<Map<String, Object>>() {});
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String, Object> readPlanBlob(Jedis jedis, String planId) {
+        byte[] blobKey = (BLOB_PREFIX + planId).getBytes(StandardCharsets.UTF_8);
+        byte[] blob = commands.record("GET", () -> jedis.get(blobKey));
+        if (blob != null) return decodeBlob(blob);
+
+        // Every write touches the plan hash, so WATCH drops the refill if the plan changed meanwhile
+        commands.record("WATCH", () -> jedis.watch(planId));
+        Map<String, Object> planData = assemble(jedis, planId);
+        if (planData.isEmpty()) {
+            commands.record("UNWATCH", jedis::unwatch);
+            return planData;
+        }
+        byte[] encoded = encodeBlob(planData);
+        commands.record("MULTI", 1, () -> {
+            Transaction transaction = jedis.multi();
+            transaction.set(blobKey, encoded);
+            return transaction.exec();
+        });
         return planData;
     }
 
-    public void removePlan(String planId) {
-        managePlanData(planId, null, true);
+    private byte[] encodeBlob(Map<String, Object> planData) {
+        try {
+            return blobMapper.writeValueAsBytes(planData);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private Map<String, Map<String, Object>> convertJsonToRedisData(JSONObject planJson) {
-        Map<String, Map<String, Object>> redisData = new HashMap<>();
-        Map<String, Object> planAttributes = new HashMap<>();
+    private Map<String, Object> decodeBlob(byte[] blob) {
+        try {
+            return blobMapper.readValue(blob, new TypeReference<Map<String, Object>>() {});
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        for (String key : planJson.keySet()) {
-            String composedKey = planJson.get("objectType") + ":" + planJson.get("objectId");
-            Object value = planJson.get(key);
+    /**
+     * True for {@code type:id} object hashes, false for link sets, link hashes, blobs and indices.
+     */
+    private static boolean isNodeKey(String key) {
+        return key.indexOf(':') == key.lastIndexOf(':') && !key.startsWith("index:");
+    }
 
-            if (value instanceof JSONObject) {
-                value = convertJsonToRedisData((JSONObject) value);
-                redisClient.sadd(composedKey + ":" + key, ((Map<String, Map<String, Object>>) value).entrySet().iterator().next().getKey());
-            } else if (value instanceof JSONArray) {
-                value = convertJsonArrayToList((JSONArray) value);
-                ((List<Map<String, Map<String, Object>>>) value)
-                        .forEach(item -> item.keySet()
-                                .forEach(listKey -> redisClient.sadd(composedKey + ":" + key, listKey)));
-            } else {
-                redisClient.hset(composedKey, key, value.toString());
-                planAttributes.put(key, value);
-                redisData.put(composedKey, planAttributes);
+    private boolean isPlanKey(String key) {
+        return key.startsWith(PLAN_PREFIX);
+    }
+
+    /**
+     * Deletes an object and everything below it, and returns the key of the plan it
+     * belonged to. A sub-object is unlinked from its parent and the eTags of its
+     * ancestors are recomputed in the same MULTI/EXEC as the delete; {@code null} is
+     * returned when no plan links to it.
+     */
+    public String removePlan(String key) {
+        if (!isPlanKey(key)) return redis.execute(jedis -> removeSubObject(jedis, key));
+
+        redis.run(jedis -> {
+            managePlanData(jedis, key, null, true);
+            commands.record("DEL", () -> jedis.del(BLOB_PREFIX + key));
+            commands.record("ZREM", () -> jedis.zrem(PLAN_INDEX_KEY, key.substring(PLAN_PREFIX.length())));
+            commands.record("PUBLISH", () -> jedis.publish(PlanCache.INVALIDATION_CHANNEL, key));
+        });
+        planCache.invalidate(Collections.singletonList(key));
+        return key;
+    }
+
+    private String removeSubObject(Jedis jedis, String key) {
+        List<String> ancestors = ancestorKeys(jedis, key);
+        String planKey = ancestors.isEmpty() ? null : ancestors.get(ancestors.size() - 1);
+
+        List<PlanNode> path = null;
+        if (planKey != null && isPlanKey(planKey)) {
+            // Every write to a plan lands on its hash, so this guards the tree the new eTags are derived from
+            commands.record("WATCH", () -> jedis.watch(planKey, key));
+            Map<String, Object> storedDocument = loadStoredDocument(jedis, planKey);
+            if (storedDocument != null) path = pathTo(PlanNode.of(storedDocument), key, new ArrayList<>());
+            if (path == null) commands.record("UNWATCH", jedis::unwatch);
+        }
+        if (path == null) {
+            // Not reachable from any plan, so there are no ancestors to update
+            managePlanData(jedis, key, null, true);
+            commands.record("PUBLISH", () -> jedis.publish(PlanCache.INVALIDATION_CHANNEL, PlanCache.INVALIDATE_ALL));
+            planCache.invalidate(Collections.singletonList(key));
+            return null;
+        }
+
+        PlanNode removed = path.get(path.size() - 1);
+        PlanNode parent = path.get(path.size() - 2);
+        RedisWriteBatch batch = new RedisWriteBatch();
+        queueNodeRemoval(batch, removed, Collections.emptySet());
+        for (Map.Entry<String, List<PlanNode>> entry : parent.children.entrySet()) {
+            if (!entry.getValue().remove(removed)) continue;
+            String attribute = entry.getKey();
+            batch.srem(parent.key + ":" + attribute, removed.key);
+            // A stored plan read back has no entry for an object link without a member
+            if (OBJECT_LINK.equals(parent.linkKinds.get(attribute))) {
+                batch.hdel(LINKS_PREFIX + parent.key, attribute);
+                parent.linkKinds.remove(attribute);
+                parent.children.remove(attribute);
             }
+            break;
+        }
+        // Siblings keep their stored eTags, so only the path up to the plan is rehashed
+        for (int i = path.size() - 2; i >= 0; i--) {
+            PlanNode ancestor = path.get(i);
+            ancestor.eTag = eTagOf(ancestor);
+            batch.hset(ancestor.key, "eTag", ancestor.eTag);
         }
-        return redisData;
+        // The plan's serialized copy still holds the removed object; the next read rebuilds it
+        batch.del(BLOB_PREFIX + planKey);
+        commit(jedis, batch, key);
+        return planKey;
     }
 
-    private Map<String, Object> managePlanData(String redisKey, Map<String, Object> resultData, boolean deleteFlag) {
-        Set<String> relatedKeys = redisClient.keys(redisKey + ":*");
-        relatedKeys.add(redisKey);
+    /**
+     * Keys of the objects above {@code key}, nearest first, following the parent index.
+     */
+    private List<String> ancestorKeys(Jedis jedis, String key) {
+        List<String> ancestors = new ArrayList<>();
+        String current = key;
+        while (ancestors.size() < MAX_DEPTH) {
+            String child = current;
+            String parent = commands.record("HGET", () -> jedis.hget(PARENT_INDEX_KEY, child));
+            if (parent == null) break;
+            ancestors.add(parent);
+            current = parent;
+        }
+        return ancestors;
+    }
 
-        for (String key : relatedKeys) {
-            if (key.equals(redisKey)) {
-                if (deleteFlag) redisClient.del(key);
-                else {
-                    Map<String, String> objectData = redisClient.hgetAll(key);
-                    objectData.forEach((attrKey, value) -> {
-                        if (!"eTag".equalsIgnoreCase(attrKey)) {
-                            resultData.put(attrKey, isNumeric(value) ? Integer.parseInt(value) : value);
-                        }
-                    });
-                }
-            } else {
-                manageNestedData(key, redisKey, resultData, deleteFlag);
+    /**
+     * The nodes from {@code node} down to the one with {@code key}, or {@code null} when it is not below {@code node}.
+     */
+    private List<PlanNode> pathTo(PlanNode node, String key, List<PlanNode> path) {
+        path.add(node);
+        if (node.key.equals(key)) return path;
+        for (List<PlanNode> children : node.children.values()) {
+            for (PlanNode child : children) {
+                if (pathTo(child, key, path) != null) return path;
             }
         }
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    private Map<String, Object> managePlanData(Jedis jedis, String redisKey, Map<String, Object> resultData, boolean deleteFlag) {
+        Map<String, String> links = commands.record("HGETALL", () -> jedis.hgetAll(LINKS_PREFIX + redisKey));
+
+        if (deleteFlag) {
+            commands.record("DEL", () -> jedis.del(redisKey, LINKS_PREFIX + redisKey));
+            if (!isPlanKey(redisKey)) commands.record("HDEL", () -> jedis.hdel(PARENT_INDEX_KEY, redisKey));
+        } else {
+            Map<String, String> objectData = commands.record("HGETALL", () -> jedis.hgetAll(redisKey));
+            objectData.forEach((attrKey, value) -> {
+                if (!"eTag".equalsIgnoreCase(attrKey)) {
+                    resultData.put(attrKey, isNumeric(value) ? Integer.parseInt(value) : value);
+                }
+            });
+        }
+
+        links.forEach((attributeKey, kind) ->
+                manageNestedData(jedis, redisKey + ":" + attributeKey, attributeKey, ARRAY_LINK.equals(kind), resultData, deleteFlag));
         return resultData;
     }
 
-    private void manageNestedData(String key, String redisKey, Map<String, Object> resultMap, boolean deleteFlag) {
-        String attributeKey = key.substring((redisKey + ":").length());
-        Set<String> members = redisClient.smembers(key);
-        if (members.size() > 1 || "linkedPlanServices".equals(attributeKey)) {
+    private void manageNestedData(Jedis jedis, String key, String attributeKey, boolean isArray, Map<String, Object> resultMap, boolean deleteFlag) {
+        Set<String> members = commands.record("SMEMBERS", () -> jedis.smembers(key));
+        if (isArray) {
             List<Object> listObjects = new ArrayList<>();
             for (String member : members) {
                 if (deleteFlag) {
-                    managePlanData(member, null, true);
+                    managePlanData(jedis, member, null, true);
                 } else {
                     Map<String, Object> nestedData = new HashMap<>();
-                    listObjects.add(managePlanData(member, nestedData, false));
+                    listObjects.add(managePlanData(jedis, member, nestedData, false));
                 }
             }
             if (!deleteFlag) resultMap.put(attributeKey, listObjects);
-        } else {
-            manageSingleMemberData(members, key, resultMap, attributeKey, deleteFlag);
+        } else if (!members.isEmpty()) {
+            String member = members.iterator().next();
+            if (deleteFlag) managePlanData(jedis, member, null, true);
+            else resultMap.put(attributeKey, managePlanData(jedis, member, new HashMap<>(), false));
         }
-        if (deleteFlag) redisClient.del(key);
+        if (deleteFlag) commands.record("DEL", () -> jedis.del(key));
     }
 
-    private void manageSingleMemberData(Set<String> members, String key, Map<String, Object> resultMap, String attributeKey, boolean deleteFlag) {
-        if (deleteFlag) {
-            redisClient.del(members.iterator().next(), key);
-        } else {
-            Map<String, String> memberData = redisClient.hgetAll(members.iterator().next());
-            Map<String, Object> nestedData = new HashMap<>();
-            memberData.forEach((attrKey, value) -> nestedData.put(attrKey, isNumeric(value) ? Integer.parseInt(value) : value));
-            resultMap.put(attributeKey, nestedData);
+    /**
+     * Reads only the attributes named in {@code fields} (see {@link FieldProjection})
+     * without touching the rest of the object graph. Every object returned keeps its
+     * objectId and objectType. Each level of the projection costs two pipelined round
+     * trips, plus one per child object that is read whole.
+     */
+    public Map<String, Object> retrievePlanFields(String key, String fields) {
+        FieldProjection projection = FieldProjection.parse(fields);
+        return redis.execute(jedis -> project(jedis, key, projection));
+    }
+
+    private Map<String, Object> project(Jedis jedis, String rootKey, FieldProjection rootProjection) {
+        Map<String, Object> root = identity(rootKey);
+        List<ProjectedNode> level = List.of(new ProjectedNode(rootKey, rootProjection, root));
+        while (!level.isEmpty()) {
+            // The requested fields and link kinds of every object on this level
+            Pipeline pipeline = jedis.pipelined();
+            for (ProjectedNode node : level) {
+                String[] attributes = node.projection.attributes.keySet().toArray(new String[0]);
+                node.values = pipeline.hmget(node.key, attributes);
+                node.linkKinds = pipeline.hmget(LINKS_PREFIX + node.key, attributes);
+            }
+            commands.record("PIPELINE", level.size() * 2, pipeline::sync);
+
+            // Then the members of the requested links
+            pipeline = jedis.pipelined();
+            int memberReads = 0;
+            for (ProjectedNode node : level) {
+                int i = 0;
+                for (String attribute : node.projection.attributes.keySet()) {
+                    String kind = node.linkKinds.get().get(i);
+                    String value = node.values.get().get(i);
+                    if (kind != null) {
+                        node.kinds.put(attribute, kind);
+                        node.members.put(attribute, pipeline.smembers(node.key + ":" + attribute));
+                        memberReads++;
+                    } else if (value != null && !"eTag".equals(attribute)) {
+                        node.data.put(attribute, isNumeric(value) ? Integer.parseInt(value) : value);
+                    }
+                    i++;
+                }
+            }
+            if (memberReads > 0) commands.record("PIPELINE", memberReads, pipeline::sync);
+
+            List<ProjectedNode> next = new ArrayList<>();
+            for (ProjectedNode node : level) {
+                node.members.forEach((attribute, members) -> {
+                    FieldProjection childProjection = node.projection.attributes.get(attribute);
+                    List<Object> children = new ArrayList<>();
+                    for (String member : members.get()) {
+                        if (childProjection.whole) {
+                            children.add(assemble(jedis, member));
+                        } else {
+                            Map<String, Object> child = identity(member);
+                            next.add(new ProjectedNode(member, childProjection, child));
+                            children.add(child);
+                        }
+                    }
+                    if (ARRAY_LINK.equals(node.kinds.get(attribute))) {
+                        node.data.put(attribute, children);
+                    } else if (!children.isEmpty()) {
+                        node.data.put(attribute, children.get(0));
+                    }
+                });
+            }
+            level = next;
         }
+        return root;
+    }
+
+    /**
+     * objectType and objectId of the object at {@code key}, read from the key itself.
+     */
+    private Map<String, Object> identity(String key) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        int separator = key.indexOf(':');
+        String objectId = key.substring(separator + 1);
+        data.put("objectType", key.substring(0, separator));
+        data.put("objectId", isNumeric(objectId) ? Integer.parseInt(objectId) : objectId);
+        return data;
     }
 
-    public List<Object> convertJsonArrayToList(JSONArray array) {
-        List<Object> list = new ArrayList<>();
-        for (Object item : array) {
-            if (item instanceof JSONArray) item = convertJsonArrayToList((JSONArray) item);
-            else if (item instanceof JSONObject) item = convertJsonToRedisData((JSONObject) item);
-            list.add(item);
+    private static class ProjectedNode {
+        private final String key;
+        private final FieldProjection projection;
+        private final Map<String, Object> data;
+        private final Map<String, String> kinds = new HashMap<>();
+        private final Map<String, Response<Set<String>>> members = new LinkedHashMap<>();
+        private Response<List<String>> values;
+        private Response<List<String>> linkKinds;
+
+        private ProjectedNode(String key, FieldProjection projection, Map<String, Object> data) {
+            this.key = key;
+            this.projection = projection;
+            this.data = data;
         }
-        return list;
     }
 
     private boolean isNumeric(String value) {
@@ -148,19 +693,22 @@ public class MedicalPlanService {
         }
     }
 
-    public List<Map<String, Object>> fetchAllPlans() {
+    /**
+     * Up to {@code limit} plan ids following {@code cursor} in index order.
+     */
+    public List<String> fetchPlanIds(String cursor, int limit) {
+        String min = (cursor == null || cursor.isEmpty()) ? "-" : "(" + cursor;
+        return new ArrayList<>(redis.execute("ZRANGEBYLEX", jedis -> jedis.zrangeByLex(PLAN_INDEX_KEY, min, "+", 0, limit)));
+    }
+
+    public PlanPage fetchPlans(String cursor, int limit) {
+        List<String> planIds = fetchPlanIds(cursor, limit);
+
         List<Map<String, Object>> plans = new ArrayList<>();
-        Set<String> planKeys = redisClient.keys("plan:*");
-        planKeys.forEach(key -> {
-            try {
-                if ("hash".equals(redisClient.type(key))) {
-                    Map<String, Object> planData = retrievePlanDetails(key);
-                    plans.add(planData);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-        return plans;
+        for (String planId : planIds) {
+            plans.add(retrievePlanDetails(PLAN_PREFIX + planId));
+        }
+        String nextCursor = planIds.size() == limit ? planIds.get(planIds.size() - 1) : null;
+        return new PlanPage(plans, nextCursor);
     }
 }
@@ -0,0 +1,104 @@
+package com.info7255.demo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.JedisPubSub;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded in-process cache of reassembled objects, keyed by Redis key. An entry
+ * is only served while the caller's current eTag still matches the one it was
+ * cached under. Writers publish the node keys they changed on
+ * {@link #INVALIDATION_CHANNEL} so every instance drops its copies promptly.
+ */
+@Component
+public class PlanCache {
+    static final String INVALIDATION_CHANNEL = "plan-invalidation";
+    // Published when the affected entries cannot be named, e.g. ancestors of a deleted sub-object
+    static final String INVALIDATE_ALL = "*";
+
+    private final boolean enabled;
+    private final Cache<String, CachedObject> cache;
+
+    public PlanCache(RedisConnectionManager redis,
+                     MeterRegistry registry,
+                     @Value("${medicalplan.cache.enabled:true}") boolean enabled,
+                     @Value("${medicalplan.cache.max-size:10000}") long maxSize,
+                     @Value("${medicalplan.cache.ttl-seconds:300}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "planCache");
+
+        if (enabled) {
+            redis.subscribe(new InvalidationListener(), INVALIDATION_CHANNEL);
+        }
+    }
+
+    /**
+     * Returns the cached object, or {@code null} when it is missing or was cached
+     * under a different eTag.
+     */
+    public Map<String, Object> get(String key, String eTag) {
+        if (!enabled) return null;
+        CachedObject cached = cache.getIfPresent(key);
+        if (cached == null) return null;
+        if (!Objects.equals(cached.eTag, eTag)) {
+            cache.invalidate(key);
+            return null;
+        }
+        return cached.data;
+    }
+
+    public void put(String key, String eTag, Map<String, Object> data) {
+        if (enabled && !data.isEmpty()) cache.put(key, new CachedObject(eTag, data));
+    }
+
+    public void invalidate(Collection<String> keys) {
+        cache.invalidateAll(keys);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static class CachedObject {
+        private final String eTag;
+        private final Map<String, Object> data;
+
+        private CachedObject(String eTag, Map<String, Object> data) {
+            this.eTag = eTag;
+            this.data = data;
+        }
+    }
+
+    private class InvalidationListener extends JedisPubSub {
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            // Anything published while we were disconnected is lost
+            invalidateAll();
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            if (INVALIDATE_ALL.equals(message)) {
+                invalidateAll();
+                return;
+            }
+            for (String key : message.split(" ")) {
+                cache.invalidate(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.info7255.demo.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The objects of a plan that an update added, changed or removed, as the index
+ * needs them: added objects with all their fields, changed objects with only
+ * the fields that differ, and removed objects by id. An object that moved to
+ * another parent or attribute is added again whole under its new parent and is
+ * not removed.
+ */
+public class PlanDelta {
+
+    private final String planId;
+    private final List<Upsert> upserts = new ArrayList<>();
+    private final List<String> removedIds = new ArrayList<>();
+    // Ids of every object in the new version, which no longer counts as removed wherever it was before
+    private final Set<String> currentIds = new HashSet<>();
+    private String eTag;
+
+    PlanDelta(String planId) {
+        this.planId = planId;
+    }
+
+    /**
+     * Compares two versions of the same plan document. Values are compared by their
+     * string form, since documents read back from Redis hold every scalar as a string.
+     */
+    static PlanDelta between(Map<String, Object> before, Map<String, Object> after) {
+        PlanDelta delta = new PlanDelta(String.valueOf(after.get("objectId")));
+        delta.collectCurrentIds(after);
+        delta.compare(before, after, null, null);
+        return delta;
+    }
+
+    public String getPlanId() {
+        return planId;
+    }
+
+    /**
+     * eTag of the plan once the delta is applied.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public List<Upsert> getUpserts() {
+        return upserts;
+    }
+
+    public List<String> getRemovedIds() {
+        return removedIds;
+    }
+
+    public boolean isEmpty() {
+        return upserts.isEmpty() && removedIds.isEmpty();
+    }
+
+    public Map<String, Object> toPayload() {
+        List<Map<String, Object>> upsertPayloads = new ArrayList<>(upserts.size());
+        for (Upsert upsert : upserts) {
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("id", upsert.id);
+            payload.put("relation", upsert.relation);
+            payload.put("parent", upsert.parentId);
+            payload.put("created", upsert.created);
+            payload.put("fields", upsert.fields);
+            upsertPayloads.add(payload);
+        }
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("objectId", planId);
+        payload.put("upserts", upsertPayloads);
+        payload.put("removed", removedIds);
+        return payload;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static PlanDelta fromPayload(Map<String, Object> payload) {
+        PlanDelta delta = new PlanDelta(String.valueOf(payload.get("objectId")));
+        for (Map<String, Object> upsert : (List<Map<String, Object>>) payload.get("upserts")) {
+            delta.upserts.add(new Upsert((String) upsert.get("id"), (String) upsert.get("relation"),
+                    (String) upsert.get("parent"), Boolean.TRUE.equals(upsert.get("created")),
+                    (Map<String, Object>) upsert.get("fields")));
+        }
+        delta.removedIds.addAll((List<String>) payload.get("removed"));
+        return delta;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compare(Map<String, Object> before, Map<String, Object> after, String parentId, String relation) {
+        String id = String.valueOf(after.get("objectId"));
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map || value instanceof List || "eTag".equals(entry.getKey())) continue;
+            if (before == null || !sameValue(before.get(entry.getKey()), value)) fields.put(entry.getKey(), value);
+        }
+        if (before != null) {
+            for (Map.Entry<String, Object> entry : before.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Map || value instanceof List || "eTag".equals(entry.getKey())) continue;
+                // Indexed as null so the field stops matching, since a partial update cannot drop it
+                if (!after.containsKey(entry.getKey())) fields.put(entry.getKey(), null);
+            }
+        }
+        if (before == null || !fields.isEmpty()) {
+            upserts.add(new Upsert(id, relation, parentId, before == null, fields));
+        }
+
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            String attribute = entry.getKey();
+            Map<String, Map<String, Object>> previous = children(before == null ? null : before.get(attribute));
+            for (Map<String, Object> child : children(entry.getValue()).values()) {
+                compare(previous.get(String.valueOf(child.get("objectId"))), child, id, attribute);
+            }
+        }
+        if (before != null) {
+            for (Map.Entry<String, Object> entry : before.entrySet()) {
+                Map<String, Map<String, Object>> current = children(after.get(entry.getKey()));
+                children(entry.getValue()).forEach((childId, child) -> {
+                    if (!current.containsKey(childId)) collectIds(child);
+                });
+            }
+        }
+    }
+
+    private void collectCurrentIds(Map<String, Object> object) {
+        currentIds.add(String.valueOf(object.get("objectId")));
+        for (Object value : object.values()) {
+            for (Map<String, Object> child : children(value).values()) collectCurrentIds(child);
+        }
+    }
+
+    private void collectIds(Map<String, Object> object) {
+        for (Object value : object.values()) {
+            for (Map<String, Object> child : children(value).values()) collectIds(child);
+        }
+        String id = String.valueOf(object.get("objectId"));
+        if (!currentIds.contains(id)) removedIds.add(id);
+    }
+
+    /**
+     * Child objects held by an attribute value, by objectId.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Object>> children(Object value) {
+        Map<String, Map<String, Object>> children = new LinkedHashMap<>();
+        if (value instanceof Map) {
+            Map<String, Object> child = (Map<String, Object>) value;
+            children.put(String.valueOf(child.get("objectId")), child);
+        } else if (value instanceof List) {
+            for (Object item : (List<Object>) value) {
+                if (item instanceof Map) children.putAll(children(item));
+            }
+        }
+        return children;
+    }
+
+    private static boolean sameValue(Object stored, Object value) {
+        return Objects.equals(stored == null ? null : String.valueOf(stored), value == null ? null : String.valueOf(value));
+    }
+
+    /**
+     * One object to write to the index. {@code parentId} and {@code relation} are
+     * {@code null} for the top-level plan.
+     */
+    public static class Upsert {
+        private final String id;
+        private final String relation;
+        private final String parentId;
+        private final boolean created;
+        private final Map<String, Object> fields;
+
+        Upsert(String id, String relation, String parentId, boolean created, Map<String, Object> fields) {
+            this.id = id;
+            this.relation = relation;
+            this.parentId = parentId;
+            this.created = created;
+            this.fields = fields;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRelation() {
+            return relation;
+        }
+
+        public String getParentId() {
+            return parentId;
+        }
+
+        /**
+         * Whether the object is new, in which case {@link #getFields()} holds all of its fields.
+         */
+        public boolean isCreated() {
+            return created;
+        }
+
+        public Map<String, Object> getFields() {
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.info7255.demo.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a plan into the parent/child documents of {@code plan-index} in a single
+ * walk, handing each one to a sink as soon as it is complete. Holds no state, so
+ * any number of consumers can share it.
+ *
+ * <p>Every document is routed by the id of its top-level plan, which keeps a
+ * plan's whole join tree on one shard.
+ */
+@Component
+public class PlanDocumentFlattener {
+
+    static final String JOIN_FIELD = "plan_join";
+    private static final String ROOT_RELATION = "plan";
+
+    @FunctionalInterface
+    public interface DocumentSink {
+        void accept(String routing, String id, Map<String, Object> source);
+    }
+
+    @FunctionalInterface
+    public interface IdSink {
+        void accept(String routing, String id);
+    }
+
+    public void flatten(Map<String, Object> plan, DocumentSink sink) {
+        String planId = plan.get("objectId").toString();
+        flattenObject(plan, planId, null, ROOT_RELATION, sink);
+    }
+
+    /**
+     * Visits the id of every document {@link #flatten} would produce, without building sources.
+     */
+    public void forEachId(Map<String, Object> plan, IdSink sink) {
+        String planId = plan.get("objectId").toString();
+        visitIds(plan, planId, sink);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flattenObject(Map<String, Object> object, String routing, String parentId, String relation, DocumentSink sink) {
+        String objectId = object.get("objectId").toString();
+        Map<String, Object> source = new HashMap<>(object.size() + 1);
+
+        for (Map.Entry<String, Object> entry : object.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                flattenObject((Map<String, Object>) value, routing, objectId, key, sink);
+            } else if (value instanceof List) {
+                flattenArray((List<Object>) value, routing, objectId, key, sink);
+            } else {
+                source.put(key, value);
+            }
+        }
+
+        source.put(JOIN_FIELD, join(relation, parentId));
+        sink.accept(routing, objectId, source);
+    }
+
+    /**
+     * Value of the join field for an object linked to {@code parentId} by {@code relation},
+     * or for the top-level plan when {@code parentId} is {@code null}.
+     */
+    static Object join(String relation, String parentId) {
+        if (parentId == null) return ROOT_RELATION;
+        Map<String, Object> join = new HashMap<>(4);
+        join.put("name", relation);
+        join.put("parent", parentId);
+        return join;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flattenArray(List<Object> array, String routing, String parentId, String relation, DocumentSink sink) {
+        for (Object value : array) {
+            if (value instanceof Map) {
+                flattenObject((Map<String, Object>) value, routing, parentId, relation, sink);
+            } else if (value instanceof List) {
+                flattenArray((List<Object>) value, routing, parentId, relation, sink);
+            }
+        }
+    }
+
+    private void visitIds(Object value, String routing, IdSink sink) {
+        if (value instanceof Map) {
+            Map<?, ?> object = (Map<?, ?>) value;
+            for (Object child : object.values()) {
+                visitIds(child, routing, sink);
+            }
+            sink.accept(routing, object.get("objectId").toString());
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                visitIds(item, routing, sink);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.info7255.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import static com.info7255.demo.service.MedicalPlanService.*;
+
+/**
+ * Builds the plan id index, the per-node link hashes and the parent index for data
+ * written before they existed. Runs once per Redis instance; marker keys record completion.
+ */
+@Component
+public class PlanIndexBackfill {
+    private static final Logger logger = LoggerFactory.getLogger(PlanIndexBackfill.class);
+    private static final String BACKFILL_MARKER = "index:backfilled";
+    private static final String PARENT_BACKFILL_MARKER = "index:parents-backfilled";
+
+    private final RedisConnectionManager redis;
+
+    public PlanIndexBackfill(RedisConnectionManager redis) {
+        this.redis = redis;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        try {
+            redis.run(this::backfill);
+            redis.run(this::backfillParents);
+        } catch (Exception e) {
+            logger.error("Plan index backfill failed, will retry on next start: {}", e.getMessage());
+        }
+    }
+
+    private void backfill(Jedis jedis) {
+        if (jedis.exists(BACKFILL_MARKER)) return;
+
+        ScanParams params = new ScanParams().count(500);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        int plans = 0;
+        do {
+            ScanResult<String> page = jedis.scan(cursor, params);
+            for (String key : page.getResult()) {
+                if (key.startsWith(LINKS_PREFIX) || key.startsWith("index:")) continue;
+
+                String[] parts = key.split(":");
+                String type = jedis.type(key);
+                if ("hash".equals(type) && parts.length == 2 && key.startsWith(PLAN_PREFIX)) {
+                    jedis.zadd(PLAN_INDEX_KEY, 0, parts[1]);
+                    plans++;
+                } else if ("set".equals(type) && parts.length == 3) {
+                    // Same shape rule the pattern-based reader used
+                    String kind = "linkedPlanServices".equals(parts[2]) || jedis.scard(key) > 1 ? ARRAY_LINK : OBJECT_LINK;
+                    jedis.hsetnx(LINKS_PREFIX + parts[0] + ":" + parts[1], parts[2], kind);
+                }
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        jedis.set(BACKFILL_MARKER, "1");
+        logger.info("Plan index backfill indexed {} plans", plans);
+    }
+
+    private void backfillParents(Jedis jedis) {
+        if (jedis.exists(PARENT_BACKFILL_MARKER)) return;
+
+        ScanParams params = new ScanParams().count(500);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        int children = 0;
+        do {
+            ScanResult<String> page = jedis.scan(cursor, params);
+            for (String key : page.getResult()) {
+                if (key.startsWith(LINKS_PREFIX) || key.startsWith("index:")) continue;
+
+                String[] parts = key.split(":");
+                if (parts.length != 3 || !"set".equals(jedis.type(key))) continue;
+                for (String child : jedis.smembers(key)) {
+                    // A parent recorded by a write since startup is newer than this scan
+                    children += jedis.hsetnx(PARENT_INDEX_KEY, child, parts[0] + ":" + parts[1]).intValue();
+                }
+            }
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+        jedis.set(PARENT_BACKFILL_MARKER, "1");
+        logger.info("Parent index backfill recorded {} sub-objects", children);
+    }
+}
@@ -0,0 +1,462 @@
+package com.info7255.demo.service;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.CreateIndexResponse;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.client.indices.PutComposableIndexTemplateRequest;
+import org.elasticsearch.cluster.metadata.ComposableIndexTemplate;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.cluster.metadata.Template;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Creates or verifies {@code plan-index} and its join mapping once at startup and
+ * remembers the outcome, so indexing does not ask Elasticsearch whether the index
+ * exists for every message. The state is only re-checked after Elasticsearch
+ * reports the index missing.
+ *
+ * <p>{@code plan-index} may also be an alias, once {@link PlanReindexJob} has
+ * rebuilt the index under a new name. While a rebuild runs, writes go to the
+ * index being built as well as the live one.
+ *
+ * <p>An index template carrying the same mapping covers {@code plan-index*}, so an
+ * index Elasticsearch auto-creates on a write, say after the index was deleted
+ * underneath a running instance, still has the {@code plan_join} field.
+ */
+@Component
+public class PlanIndexManager implements HealthIndicator {
+    private static final Logger logger = LoggerFactory.getLogger(PlanIndexManager.class);
+
+    static final String INDEX_NAME = "plan-index";
+    static final String TEMPLATE_NAME = "plan-index-template";
+    private static final Status DEGRADED = new Status("DEGRADED");
+    private static final String OBJECT_ID = "objectId";
+
+    // How often the index being rebuilt, if any, is read back from Redis
+    static final long REBUILD_CHECK_INTERVAL_MS = 5000;
+
+    private final RestHighLevelClient client;
+    private final RedisConnectionManager redis;
+    private final boolean failFast;
+
+    private volatile boolean indexReady;
+    private volatile boolean templateReady;
+    private volatile List<String> mappingDifferences = new ArrayList<>();
+    private volatile List<String> writeIndices = List.of(INDEX_NAME);
+    private volatile String objectIdSortField = OBJECT_ID;
+    private volatile long nextRebuildCheck;
+
+    public PlanIndexManager(RestHighLevelClient client,
+                            RedisConnectionManager redis,
+                            @Value("${elasticsearch.index.fail-fast:false}") boolean failFast) {
+        this.client = client;
+        this.redis = redis;
+        this.failFast = failFast;
+    }
+
+    @PostConstruct
+    public void provision() {
+        try {
+            ensureIndex();
+        } catch (IOException e) {
+            if (failFast) throw new IllegalStateException("Could not provision " + INDEX_NAME, e);
+            logger.error("Could not provision {}, will retry on first message: {}", INDEX_NAME, e.getMessage());
+            return;
+        }
+        if (!mappingDifferences.isEmpty()) {
+            if (failFast) throw new IllegalStateException(INDEX_NAME + " mapping differs from the expected one: " + mappingDifferences);
+            logger.error("{} mapping differs from the expected one, POST /admin/reindex to rebuild it: {}", INDEX_NAME, mappingDifferences);
+        }
+    }
+
+    /**
+     * Makes sure the index exists, creating it if needed. Cheap once the index is known to exist.
+     */
+    public void ensureIndex() throws IOException {
+        if (indexReady) return;
+        synchronized (this) {
+            if (indexReady) return;
+            if (!templateReady) {
+                putIndexTemplate();
+                templateReady = true;
+            }
+            if (client.indices().exists(new GetIndexRequest(INDEX_NAME), RequestOptions.DEFAULT)) {
+                mappingDifferences = compareMapping();
+            } else {
+                createElasticIndex(INDEX_NAME);
+                mappingDifferences = new ArrayList<>();
+            }
+            indexReady = true;
+        }
+    }
+
+    /**
+     * Indices every write must reach: the live index, plus the one being rebuilt while a
+     * rebuild runs on any instance. Read from the rebuild checkpoint at most once per
+     * {@value #REBUILD_CHECK_INTERVAL_MS} ms.
+     */
+    public List<String> writeIndices() {
+        long now = System.currentTimeMillis();
+        if (now < nextRebuildCheck) return writeIndices;
+        nextRebuildCheck = now + REBUILD_CHECK_INTERVAL_MS;
+        try {
+            String rebuildIndex = redis.execute(jedis -> jedis.hget(PlanReindexJob.CHECKPOINT_KEY, "index"));
+            writeIndices = rebuildIndex == null ? List.of(INDEX_NAME) : List.of(INDEX_NAME, rebuildIndex);
+        } catch (RuntimeException e) {
+            logger.warn("Could not read the rebuild checkpoint, keeping write indices {}: {}", writeIndices, e.getMessage());
+        }
+        return writeIndices;
+    }
+
+    /**
+     * Creates a concrete index with the plan mapping, for a rebuild to fill.
+     */
+    public void createIndex(String name) throws IOException {
+        createElasticIndex(name);
+    }
+
+    /**
+     * Points {@code plan-index} at {@code newIndex} in one atomic aliases request. A
+     * concrete index still named {@code plan-index} is deleted in the same request, as
+     * the alias cannot be created alongside it; indices the alias leaves are kept.
+     */
+    public void switchAlias(String newIndex) throws IOException {
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        if (client.indices().existsAlias(new GetAliasesRequest(INDEX_NAME), RequestOptions.DEFAULT)) {
+            request.addAliasAction(IndicesAliasesRequest.AliasActions.remove().index("*").alias(INDEX_NAME));
+        } else if (client.indices().exists(new GetIndexRequest(INDEX_NAME), RequestOptions.DEFAULT)) {
+            request.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(INDEX_NAME));
+        }
+        request.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(newIndex).alias(INDEX_NAME));
+        client.indices().updateAliases(request, RequestOptions.DEFAULT);
+        logger.info("{} now points at {}", INDEX_NAME, newIndex);
+
+        synchronized (this) {
+            indexReady = false;
+            // The new index was created with the current mapping
+            objectIdSortField = OBJECT_ID;
+        }
+        nextRebuildCheck = 0;
+    }
+
+    /**
+     * The field search pages sort on. Indices created before objectId was mapped as a
+     * top-level keyword only have it dynamically mapped, as text with a keyword
+     * subfield, so those sort on the subfield until a reindex switches the alias.
+     */
+    public String objectIdSortField() {
+        return objectIdSortField;
+    }
+
+    /**
+     * Called when Elasticsearch answers index-not-found, so the next write provisions it again.
+     */
+    public void markMissing() {
+        if (indexReady) logger.warn("{} reported missing, will recreate it", INDEX_NAME);
+        indexReady = false;
+    }
+
+    @Override
+    public Health health() {
+        if (!indexReady) return Health.down().withDetail("index", INDEX_NAME).build();
+        if (!mappingDifferences.isEmpty()) {
+            return Health.status(DEGRADED).withDetail("index", INDEX_NAME).withDetail("mappingDifferences", mappingDifferences)
+                    .withDetail("fix", "POST /admin/reindex").build();
+        }
+        return Health.up().withDetail("index", INDEX_NAME).build();
+    }
+
+    /**
+     * Installs or replaces the template that gives any new {@code plan-index*} index the plan mapping.
+     */
+    private void putIndexTemplate() throws IOException {
+        Template template = new Template(indexSettings(), new CompressedXContent(BytesReference.bytes(getMapping())), null);
+        ComposableIndexTemplate indexTemplate = new ComposableIndexTemplate(List.of(INDEX_NAME + "*"), template, null, null, null, null);
+        client.indices().putIndexTemplate(new PutComposableIndexTemplateRequest().name(TEMPLATE_NAME).indexTemplate(indexTemplate), RequestOptions.DEFAULT);
+        logger.info("Index template {} covers {}*", TEMPLATE_NAME, INDEX_NAME);
+    }
+
+    private static Settings indexSettings() {
+        return Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 1).build();
+    }
+
+    private void createElasticIndex(String name) throws IOException {
+        CreateIndexRequest request = new CreateIndexRequest(name);
+        request.settings(indexSettings());
+        request.mapping(getMapping());
+        try {
+            CreateIndexResponse createIndexResponse = client.indices().create(request, RequestOptions.DEFAULT);
+            logger.info("Index Creation: {}", createIndexResponse.isAcknowledged());
+        } catch (ElasticsearchStatusException e) {
+            // Another instance created it first
+            if (!e.getDetailedMessage().contains("resource_already_exists_exception")) throw e;
+        }
+    }
+
+    private List<String> compareMapping() throws IOException {
+        GetMappingsResponse response = client.indices().getMapping(new GetMappingsRequest().indices(INDEX_NAME), RequestOptions.DEFAULT);
+        // Keyed by the concrete index, which differs from INDEX_NAME once that is an alias
+        MappingMetadata actual = response.mappings().values().stream().findFirst().orElse(null);
+        Map<String, Object> expected = XContentHelper.convertToMap(BytesReference.bytes(getMapping()), false, XContentType.JSON).v2();
+
+        List<String> differences = new ArrayList<>();
+        Map<String, Object> actualMapping = actual == null ? Map.of() : actual.sourceAsMap();
+        compareMapping(expected, actualMapping, "", differences);
+        objectIdSortField = sortFieldFor(actualMapping);
+        return differences;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String sortFieldFor(Map<String, Object> mapping) {
+        Object properties = mapping.get("properties");
+        Object objectId = properties instanceof Map ? ((Map<String, Object>) properties).get(OBJECT_ID) : null;
+        if (!(objectId instanceof Map) || "keyword".equals(((Map<String, Object>) objectId).get("type"))) return OBJECT_ID;
+        Object fields = ((Map<String, Object>) objectId).get("fields");
+        Object keyword = fields instanceof Map ? ((Map<String, Object>) fields).get("keyword") : null;
+        if (keyword instanceof Map && "keyword".equals(((Map<String, Object>) keyword).get("type"))) {
+            return OBJECT_ID + ".keyword";
+        }
+        return OBJECT_ID;
+    }
+
+    /**
+     * Checks that every field type and join relation in {@code expected} is present
+     * in {@code actual}. Extra fields and formatting options are not differences.
+     */
+    @SuppressWarnings("unchecked")
+    private void compareMapping(Map<String, Object> expected, Map<String, Object> actual, String path, List<String> differences) {
+        for (Map.Entry<String, Object> entry : expected.entrySet()) {
+            String key = entry.getKey();
+            Object expectedValue = entry.getValue();
+            Object actualValue = actual.get(key);
+            String fieldPath = path.isEmpty() ? key : path + "." + key;
+
+            if ("type".equals(key) || "relations".equals(key)) {
+                boolean same = "type".equals(key)
+                        ? Objects.equals(String.valueOf(expectedValue), String.valueOf(actualValue))
+                        : Objects.equals(expectedValue, actualValue);
+                if (!same) {
+                    differences.add(fieldPath + ": expected " + expectedValue + " but was " + actualValue);
+                }
+            } else if (expectedValue instanceof Map) {
+                if (actualValue instanceof Map) {
+                    compareMapping((Map<String, Object>) expectedValue, (Map<String, Object>) actualValue, fieldPath, differences);
+                } else {
+                    differences.add(fieldPath + ": missing");
+                }
+            }
+        }
+    }
+
+    XContentBuilder getMapping() throws IOException {
+
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        {
+            builder.startObject("properties");
+            {
+                builder.startObject("plan");
+                {
+                    builder.startObject("properties");
+                    {
+                        builder.startObject("_org");
+                        {
+                            builder.field("type", "text");
+                        }
+                        builder.endObject();
+                        builder.startObject("objectId");
+                        {
+                            builder.field("type", "keyword");
+                        }
+                        builder.endObject();
+                        builder.startObject("objectType");
+                        {
+                            builder.field("type", "text");
+                        }
+                        builder.endObject();
+                        builder.startObject("planType");
+                        {
+                            builder.field("type", "text");
+                        }
+                        builder.endObject();
+                        builder.startObject("creationDate");
+                        {
+                            builder.field("type", "date");
+                            builder.field("format", "MM-dd-yyyy");
+                        }
+                        builder.endObject();
+                        builder.startObject("planCostShares");
+                        {
+                            builder.startObject("properties");
+                            {
+                                builder.startObject("deductible");
+                                {
+                                    builder.field("type", "long");
+                                }
+                                builder.endObject();
+                                builder.startObject("_org");
+                                {
+                                    builder.field("type", "text");
+                                }
+                                builder.endObject();
+                                builder.startObject("copay");
+                                {
+                                    builder.field("type", "long");
+                                }
+                                builder.endObject();
+                                builder.startObject("objectId");
+                                {
+                                    builder.field("type", "keyword");
+                                }
+                                builder.endObject();
+                                builder.startObject("objectType");
+                                {
+                                    builder.field("type", "text");
+                                }
+                                builder.endObject();
+                            }
+                            builder.endObject();
+                        }
+                        builder.endObject();
+                        builder.startObject("linkedPlanServices");
+                        {
+                            builder.startObject("properties");
+                            {
+                                builder.startObject("_org");
+                                {
+                                    builder.field("type", "text");
+                                }
+                                builder.endObject();
+                                builder.startObject("objectId");
+                                {
+                                    builder.field("type", "keyword");
+                                }
+                                builder.endObject();
+                                builder.startObject("objectType");
+                                {
+                                    builder.field("type", "text");
+                                }
+                                builder.endObject();
+                                builder.startObject("linkedService");
+                                {
+                                    builder.startObject("properties");
+                                    {
+                                        builder.startObject("name");
+                                        {
+                                            builder.field("type", "text");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("_org");
+                                        {
+                                            builder.field("type", "text");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("objectId");
+                                        {
+                                            builder.field("type", "keyword");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("objectType");
+                                        {
+                                            builder.field("type", "text");
+                                        }
+                                        builder.endObject();
+                                    }
+                                    builder.endObject();
+                                }
+                                builder.endObject();
+                                builder.startObject("planserviceCostShares");
+                                {
+                                    builder.startObject("properties");
+                                    {
+                                        builder.startObject("deductible");
+                                        {
+                                            builder.field("type", "long");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("_org");
+                                        {
+                                            builder.field("type", "text");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("copay");
+                                        {
+                                            builder.field("type", "long");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("objectId");
+                                        {
+                                            builder.field("type", "keyword");
+                                        }
+                                        builder.endObject();
+                                        builder.startObject("objectType");
+                                        {
+                                            builder.field("type", "text");
+                                        }
+                                        builder.endObject();
+                                    }
+                                    builder.endObject();
+                                }
+                                builder.endObject();
+                            }
+                            builder.endObject();
+                        }
+                        builder.endObject();
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+                // Documents are indexed flat, so this is the objectId search pages sort on
+                builder.startObject("objectId");
+                {
+                    builder.field("type", "keyword");
+                }
+                builder.endObject();
+                builder.startObject("plan_join");
+                {
+                    builder.field("type", "join");
+                    builder.field("eager_global_ordinals", "true");
+                    builder.startObject("relations");
+                    {
+                        builder.array("plan", "planCostShares", "linkedPlanServices");
+                        builder.array("linkedPlanServices", "linkedService", "planserviceCostShares");
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+
+        return builder;
+
+    }
+}
@@ -0,0 +1,62 @@
+package com.info7255.demo.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.info7255.demo.service.MedicalPlanService.ARRAY_LINK;
+import static com.info7255.demo.service.MedicalPlanService.OBJECT_LINK;
+
+/**
+ * One object of a plan document in the shape Redis stores it: scalar fields as
+ * strings under {@code <objectType>:<objectId>}, and child objects grouped by
+ * the attribute that links them.
+ */
+class PlanNode {
+    final String key;
+    final Map<String, String> fields = new LinkedHashMap<>();
+    // attribute -> OBJECT_LINK or ARRAY_LINK
+    final Map<String, String> linkKinds = new LinkedHashMap<>();
+    final Map<String, List<PlanNode>> children = new LinkedHashMap<>();
+    String eTag;
+
+    private PlanNode(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Builds the node tree for a document. A stored {@code eTag} field, present when
+     * the document was read back raw from Redis, is lifted out of the fields.
+     */
+    @SuppressWarnings("unchecked")
+    static PlanNode of(Map<String, Object> document) {
+        PlanNode node = new PlanNode(document.get("objectType") + ":" + document.get("objectId"));
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            String attribute = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                node.linkKinds.put(attribute, OBJECT_LINK);
+                node.children.computeIfAbsent(attribute, k -> new ArrayList<>()).add(of((Map<String, Object>) value));
+            } else if (value instanceof List) {
+                node.linkKinds.put(attribute, ARRAY_LINK);
+                List<PlanNode> items = node.children.computeIfAbsent(attribute, k -> new ArrayList<>());
+                for (Object item : (List<Object>) value) {
+                    if (item instanceof Map) items.add(of((Map<String, Object>) item));
+                }
+            } else if ("eTag".equals(attribute)) {
+                node.eTag = String.valueOf(value);
+            } else {
+                node.fields.put(attribute, String.valueOf(value));
+            }
+        }
+        return node;
+    }
+
+    PlanNode child(String attribute, String key) {
+        for (PlanNode child : children.getOrDefault(attribute, List.of())) {
+            if (child.key.equals(key)) return child;
+        }
+        return null;
+    }
+}
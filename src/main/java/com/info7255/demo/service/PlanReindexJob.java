@@ -0,0 +1,324 @@
+package com.info7255.demo.service;
+
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.params.SetParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.info7255.demo.service.MedicalPlanService.PLAN_PREFIX;
+
+/**
+ * Rebuilds {@code plan-index} from Redis into a fresh index, then points the
+ * {@code plan-index} alias at it in one step, so searches never see a half-built
+ * index. Plans are read a SCAN page at a time and indexed in parallel by a pool
+ * of workers; after each page the SCAN cursor is checkpointed in Redis, so a
+ * rebuild cut short by a restart picks up from the last finished page.
+ *
+ * <p>While the checkpoint exists, the indexing listener writes every change to the
+ * new index too. Those writes are newer than what the workers read, so workers only
+ * fill in documents and fields the listener has not written. Before the switch, the
+ * new index is swept for objects deleted from Redis while the rebuild ran. A lock
+ * key keeps the rebuild to one instance at a time.
+ */
+@Component
+public class PlanReindexJob {
+    private static final Logger logger = LoggerFactory.getLogger(PlanReindexJob.class);
+
+    // Hash of index, cursor and indexed count for the rebuild in progress
+    static final String CHECKPOINT_KEY = "reindex:checkpoint";
+    private static final String LOCK_KEY = "reindex:lock";
+    private static final int LOCK_TTL_SECONDS = 300;
+    // Adds only the fields a document lacks, leaving whatever the listener wrote since the plan was read
+    private static final String FILL_MISSING_FIELDS = "boolean changed = false;"
+            + " for (entry in params.source.entrySet()) {"
+            + "   if (!ctx._source.containsKey(entry.getKey())) { ctx._source[entry.getKey()] = entry.getValue(); changed = true; }"
+            + " }"
+            + " if (!changed) { ctx.op = 'none'; }";
+
+    private final RedisConnectionManager redis;
+    private final MedicalPlanService medicalPlanService;
+    private final PlanDocumentFlattener flattener;
+    private final PlanIndexManager indexManager;
+    private final RestHighLevelClient client;
+    private final int workers;
+    private final int batchSize;
+    private final String owner = UUID.randomUUID().toString();
+    // Retries resuming a checkpointed rebuild whose lock another instance holds
+    private final ScheduledExecutorService resumeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plan-reindex-resume");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean running;
+    private volatile String targetIndex;
+    private volatile long indexedPlans;
+    private volatile String lastError;
+
+    public PlanReindexJob(RedisConnectionManager redis,
+                          MedicalPlanService medicalPlanService,
+                          PlanDocumentFlattener flattener,
+                          PlanIndexManager indexManager,
+                          RestHighLevelClient client,
+                          @Value("${medicalplan.reindex.workers:4}") int workers,
+                          @Value("${medicalplan.reindex.batch-size:500}") int batchSize) {
+        this.redis = redis;
+        this.medicalPlanService = medicalPlanService;
+        this.flattener = flattener;
+        this.indexManager = indexManager;
+        this.client = client;
+        this.workers = workers;
+        this.batchSize = batchSize;
+    }
+
+    @PreDestroy
+    public void close() {
+        resumeScheduler.shutdownNow();
+    }
+
+    /**
+     * Resumes a rebuild that a previous run of the service left unfinished. While
+     * another instance holds the lock, whether it is still rebuilding or died without
+     * releasing it, this checks again once the lock would expire: a live owner renews
+     * it at every checkpoint, a dead one's lapses and is taken over here.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        try {
+            if (!redis.execute(jedis -> jedis.exists(CHECKPOINT_KEY))) return;
+            if (start()) {
+                logger.info("Resumed an unfinished reindex");
+                return;
+            }
+            if (running) return;
+            long ttl = redis.execute(jedis -> jedis.ttl(LOCK_KEY));
+            long delaySeconds = Math.max(ttl, 0) + 1;
+            logger.info("An unfinished reindex is locked by another instance, checking again in {}s", delaySeconds);
+            resumeScheduler.schedule(this::resumeUnfinished, delaySeconds, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {
+            logger.error("Could not check for an unfinished reindex, checking again in {}s: {}", LOCK_TTL_SECONDS, e.getMessage());
+            resumeScheduler.schedule(this::resumeUnfinished, LOCK_TTL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Starts a rebuild in the background, or resumes the checkpointed one. Returns
+     * {@code false} when a rebuild is already running here or on another instance.
+     */
+    public synchronized boolean start() {
+        if (running) return false;
+        String acquired = redis.execute(jedis -> jedis.set(LOCK_KEY, owner, SetParams.setParams().nx().ex(LOCK_TTL_SECONDS)));
+        if (!"OK".equals(acquired)) return false;
+
+        running = true;
+        lastError = null;
+        Thread thread = new Thread(this::run, "plan-reindex");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running);
+        status.put("targetIndex", targetIndex);
+        status.put("indexedPlans", indexedPlans);
+        status.put("lastError", lastError);
+        Map<String, String> checkpoint = redis.execute(jedis -> jedis.hgetAll(CHECKPOINT_KEY));
+        if (!checkpoint.isEmpty()) status.put("checkpoint", checkpoint);
+        return status;
+    }
+
+    private void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            Map<String, String> checkpoint = redis.execute(jedis -> jedis.hgetAll(CHECKPOINT_KEY));
+            String cursor;
+            if (checkpoint.isEmpty()) {
+                targetIndex = PlanIndexManager.INDEX_NAME + "-" + System.currentTimeMillis();
+                indexManager.createIndex(targetIndex);
+                cursor = ScanParams.SCAN_POINTER_START;
+                indexedPlans = 0;
+                saveCheckpoint(cursor);
+                // Let every instance pick up the new index for its writes before reading plans
+                Thread.sleep(PlanIndexManager.REBUILD_CHECK_INTERVAL_MS * 2);
+            } else {
+                targetIndex = checkpoint.get("index");
+                cursor = checkpoint.get("cursor");
+                indexedPlans = Long.parseLong(checkpoint.getOrDefault("indexed", "0"));
+            }
+            logger.info("Reindexing into {} from cursor {}", targetIndex, cursor);
+
+            ScanParams params = new ScanParams().match(PLAN_PREFIX + "*").count(batchSize);
+            do {
+                String pageCursor = cursor;
+                ScanResult<String> page = redis.execute(jedis -> jedis.scan(pageCursor, params));
+                indexPage(pool, planKeys(page.getResult()));
+                cursor = page.getCursor();
+                saveCheckpoint(cursor);
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+            long dropped = dropDeletedObjects();
+            logger.info("Dropped {} documents of objects deleted during the reindex", dropped);
+
+            indexManager.switchAlias(targetIndex);
+            redis.run(jedis -> jedis.del(CHECKPOINT_KEY));
+            logger.info("Reindex finished, {} plans in {}", indexedPlans, targetIndex);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastError = "interrupted";
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            logger.error("Reindex into {} failed, it resumes from the last checkpoint on the next start", targetIndex, e);
+        } finally {
+            pool.shutdownNow();
+            releaseLock();
+            running = false;
+        }
+    }
+
+    /**
+     * Keys of top-level plan hashes; the pattern also matches their link sets.
+     */
+    private List<String> planKeys(List<String> keys) {
+        List<String> planKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (key.indexOf(':', PLAN_PREFIX.length()) < 0) planKeys.add(key);
+        }
+        return planKeys;
+    }
+
+    private void indexPage(ExecutorService pool, List<String> planKeys) throws InterruptedException, ExecutionException {
+        if (planKeys.isEmpty()) return;
+        int chunkSize = Math.max(1, (planKeys.size() + workers - 1) / workers);
+        List<Future<Integer>> chunks = new ArrayList<>();
+        for (int start = 0; start < planKeys.size(); start += chunkSize) {
+            List<String> chunk = planKeys.subList(start, Math.min(planKeys.size(), start + chunkSize));
+            chunks.add(pool.submit(() -> indexPlans(chunk)));
+        }
+        for (Future<Integer> chunk : chunks) {
+            indexedPlans += chunk.get();
+        }
+    }
+
+    private int indexPlans(List<String> planKeys) throws IOException {
+        BulkRequest bulkRequest = new BulkRequest();
+        int plans = 0;
+        for (String planKey : planKeys) {
+            Map<String, Object> plan = medicalPlanService.retrievePlanDetails(planKey);
+            // Deleted since the SCAN returned it
+            if (plan.isEmpty()) continue;
+            flattener.flatten(plan, (routing, id, source) -> bulkRequest.add(new UpdateRequest(targetIndex, id)
+                    .routing(routing)
+                    .script(new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, FILL_MISSING_FIELDS, Map.of("source", source)))
+                    .upsert(source)));
+            plans++;
+        }
+        if (bulkRequest.numberOfActions() == 0) return 0;
+
+        BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        if (response.hasFailures()) {
+            throw new IllegalStateException("Bulk indexing into " + targetIndex + " failed: " + response.buildFailureMessage());
+        }
+        return plans;
+    }
+
+    /**
+     * Deletes documents whose object is gone from Redis. A worker may have written an
+     * object after the listener deleted it from the new index; once every page is
+     * written nothing else can bring such a document back.
+     */
+    private long dropDeletedObjects() throws IOException {
+        client.indices().refresh(new RefreshRequest(targetIndex), RequestOptions.DEFAULT);
+        long dropped = 0;
+        Object[] searchAfter = null;
+        SearchHit[] hits;
+        do {
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(QueryBuilders.matchAllQuery())
+                    .size(batchSize)
+                    .sort("objectId", SortOrder.ASC)
+                    .fetchSource(new String[]{"objectType"}, null);
+            if (searchAfter != null) source.searchAfter(searchAfter);
+            hits = client.search(new SearchRequest(targetIndex).source(source), RequestOptions.DEFAULT).getHits().getHits();
+            if (hits.length == 0) break;
+
+            Map<String, SearchHit> hitsByKey = new LinkedHashMap<>();
+            for (SearchHit hit : hits) hitsByKey.put(hit.getSourceAsMap().get("objectType") + ":" + hit.getId(), hit);
+            Set<String> existing = medicalPlanService.findExistingKeys(hitsByKey.keySet());
+            BulkRequest bulkRequest = new BulkRequest();
+            hitsByKey.forEach((key, hit) -> {
+                if (existing.contains(key)) return;
+                DocumentField routing = hit.field("_routing");
+                bulkRequest.add(new DeleteRequest(targetIndex, hit.getId()).routing(routing == null ? null : routing.getValue()));
+            });
+            if (bulkRequest.numberOfActions() > 0) {
+                BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+                if (response.hasFailures()) {
+                    throw new IllegalStateException("Dropping deleted objects from " + targetIndex + " failed: " + response.buildFailureMessage());
+                }
+                dropped += bulkRequest.numberOfActions();
+            }
+            searchAfter = hits[hits.length - 1].getSortValues();
+        } while (hits.length == batchSize);
+        return dropped;
+    }
+
+    private void saveCheckpoint(String cursor) {
+        Map<String, String> checkpoint = new HashMap<>();
+        checkpoint.put("index", targetIndex);
+        checkpoint.put("cursor", cursor);
+        checkpoint.put("indexed", String.valueOf(indexedPlans));
+        redis.run(jedis -> {
+            jedis.hset(CHECKPOINT_KEY, checkpoint);
+            jedis.expire(LOCK_KEY, LOCK_TTL_SECONDS);
+        });
+    }
+
+    private void releaseLock() {
+        try {
+            redis.run(jedis -> {
+                if (owner.equals(jedis.get(LOCK_KEY))) jedis.del(LOCK_KEY);
+            });
+        } catch (RuntimeException e) {
+            logger.warn("Could not release the reindex lock, it expires in {}s: {}", LOCK_TTL_SECONDS, e.getMessage());
+        }
+    }
+}
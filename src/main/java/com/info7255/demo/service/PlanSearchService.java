@@ -0,0 +1,198 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import com.info7255.demo.model.SearchPage;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.join.query.JoinQueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches {@code plan-index} with a small query language. A query is a list of
+ * clauses separated by spaces, all of which must match:
+ *
+ * <pre>
+ * planType:inNetwork                         field matches a value
+ * planCostShares.copay&lt;=25                  range: &gt;, &gt;=, &lt;, &lt;=
+ * linkedPlanServices.linkedService.name:"Yoga class"
+ *                                            has_child, one join level per prefix
+ * parent.planType:inNetwork                  has_parent, when searching a child type
+ * </pre>
+ *
+ * Clauses that share a prefix must match the same child object. Results are
+ * sorted by objectId and paged with search_after.
+ */
+@Service
+public class PlanSearchService {
+
+    private static final String ROOT_TYPE = "plan";
+    private static final String PARENT = "parent";
+    // Child relation -> parent relation, as declared on plan_join
+    private static final Map<String, String> RELATION_PARENTS = Map.of(
+            "planCostShares", ROOT_TYPE,
+            "linkedPlanServices", ROOT_TYPE,
+            "linkedService", "linkedPlanServices",
+            "planserviceCostShares", "linkedPlanServices");
+    private static final Pattern CLAUSE = Pattern.compile("((?:\\w+\\.)*)(\\w+)(>=|<=|:|>|<)(.+)");
+
+    private final RestHighLevelClient client;
+    private final SearchResultCache cache;
+    private final PlanIndexManager indexManager;
+
+    public PlanSearchService(RestHighLevelClient client, SearchResultCache cache, PlanIndexManager indexManager) {
+        this.client = client;
+        this.cache = cache;
+        this.indexManager = indexManager;
+    }
+
+    public SearchPage search(String type, String query, String cursor, int limit) throws IOException {
+        if (!ROOT_TYPE.equals(type) && !RELATION_PARENTS.containsKey(type)) {
+            throw new BadRequestException("Unknown type " + type);
+        }
+        String cacheKey = type + "\n" + query + "\n" + cursor + "\n" + limit;
+        SearchPage cached = cache.get(cacheKey);
+        if (cached != null) return cached;
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(buildQuery(type, query))
+                .size(limit)
+                // Unmapped in an index that has no documents yet
+                .sort(SortBuilders.fieldSort(indexManager.objectIdSortField()).order(SortOrder.ASC).unmappedType("keyword"))
+                .fetchSource(new String[]{"objectType"}, null);
+        if (cursor != null) source.searchAfter(new Object[]{cursor});
+
+        SearchResponse response;
+        try {
+            response = client.search(new SearchRequest(PlanIndexManager.INDEX_NAME).source(source), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.NOT_FOUND) throw e;
+            // Nothing has been indexed yet; not cached, as the next write creates the index
+            return new SearchPage(List.of(), null);
+        }
+        List<String> keys = new ArrayList<>();
+        String lastSortValue = null;
+        for (SearchHit hit : response.getHits().getHits()) {
+            keys.add(hit.getSourceAsMap().get("objectType") + ":" + hit.getId());
+            lastSortValue = String.valueOf(hit.getSortValues()[0]);
+        }
+        SearchPage page = new SearchPage(keys, keys.size() == limit ? lastSortValue : null);
+        cache.put(cacheKey, page);
+        return page;
+    }
+
+    /**
+     * The Elasticsearch query for {@code query} over documents of {@code type}.
+     */
+    BoolQueryBuilder buildQuery(String type, String query) {
+        BoolQueryBuilder root = toQuery(parse(query), type);
+        root.filter(QueryBuilders.termQuery(PlanDocumentFlattener.JOIN_FIELD, type));
+        return root;
+    }
+
+    /**
+     * Groups the clauses of a query by their join path.
+     */
+    private ClauseGroup parse(String query) {
+        ClauseGroup root = new ClauseGroup();
+        for (String token : tokenize(query)) {
+            Matcher matcher = CLAUSE.matcher(token);
+            if (!matcher.matches()) throw new BadRequestException("Cannot parse clause " + token);
+
+            ClauseGroup group = root;
+            String prefix = matcher.group(1);
+            if (!prefix.isEmpty()) {
+                for (String relation : prefix.substring(0, prefix.length() - 1).split("\\.")) {
+                    group = group.children.computeIfAbsent(relation, k -> new ClauseGroup());
+                }
+            }
+            group.clauses.add(clause(matcher.group(2), matcher.group(3), unquote(matcher.group(4))));
+        }
+        return root;
+    }
+
+    private BoolQueryBuilder toQuery(ClauseGroup group, String type) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        group.clauses.forEach(query::filter);
+        group.children.forEach((relation, child) -> {
+            if (PARENT.equals(relation)) {
+                String parentType = RELATION_PARENTS.get(type);
+                if (parentType == null) throw new BadRequestException(type + " has no parent");
+                query.filter(JoinQueryBuilders.hasParentQuery(parentType, toQuery(child, parentType), false));
+            } else if (type.equals(RELATION_PARENTS.get(relation))) {
+                query.filter(JoinQueryBuilders.hasChildQuery(relation, toQuery(child, relation), ScoreMode.None));
+            } else {
+                throw new BadRequestException(relation + " is not a child of " + type);
+            }
+        });
+        return query;
+    }
+
+    private QueryBuilder clause(String field, String operator, String value) {
+        if (":".equals(operator)) return QueryBuilders.matchQuery(field, value);
+        RangeQueryBuilder range = QueryBuilders.rangeQuery(field);
+        switch (operator) {
+            case ">":
+                return range.gt(value);
+            case ">=":
+                return range.gte(value);
+            case "<":
+                return range.lt(value);
+            default:
+                return range.lte(value);
+        }
+    }
+
+    /**
+     * Splits on spaces outside double quotes.
+     */
+    private List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        for (char c : query.toCharArray()) {
+            if (c == '"') quoted = !quoted;
+            if (Character.isWhitespace(c) && !quoted) {
+                if (token.length() > 0) tokens.add(token.toString());
+                token.setLength(0);
+            } else {
+                token.append(c);
+            }
+        }
+        if (quoted) throw new BadRequestException("Unterminated quote in query");
+        if (token.length() > 0) tokens.add(token.toString());
+        return tokens;
+    }
+
+    private String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static class ClauseGroup {
+        private final List<QueryBuilder> clauses = new ArrayList<>();
+        private final Map<String, ClauseGroup> children = new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,129 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Counts and times the Redis commands issued on behalf of each HTTP request.
+ * Every command is recorded in {@code redis.command}, tagged by command and by
+ * the endpoint that caused it; each request's totals go to
+ * {@code redis.request.commands} and {@code redis.request.time}. Requests that
+ * send more commands than the configured budget are logged with a breakdown.
+ *
+ * <p>Work outside a request (listeners, background jobs) is tagged
+ * {@value #NO_ENDPOINT}.
+ */
+@Component
+public class RedisCommandMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(RedisCommandMetrics.class);
+    static final String NO_ENDPOINT = "none";
+
+    private static final ThreadLocal<RequestStats> CURRENT = new ThreadLocal<>();
+
+    private final MeterRegistry registry;
+    private final int commandBudget;
+
+    public RedisCommandMetrics(MeterRegistry registry,
+                               @Value("${medicalplan.redis.command-budget:50}") int commandBudget) {
+        this.registry = registry;
+        this.commandBudget = commandBudget;
+    }
+
+    public <T> T record(String command, Supplier<T> call) {
+        return record(command, 1, call);
+    }
+
+    /**
+     * Runs a call that sends {@code commands} commands in one round trip, such as a
+     * pipeline sync or a MULTI/EXEC, and records it once under {@code command}.
+     */
+    public <T> T record(String command, int commands, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            RequestStats stats = CURRENT.get();
+            Timer.builder("redis.command")
+                    .description("Latency of Redis commands and round trips")
+                    .tag("command", command)
+                    .tag("endpoint", stats == null ? NO_ENDPOINT : stats.endpoint)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(elapsed, TimeUnit.NANOSECONDS);
+            if (stats != null) stats.add(command, commands, elapsed);
+        }
+    }
+
+    public void record(String command, Runnable call) {
+        record(command, 1, call);
+    }
+
+    public void record(String command, int commands, Runnable call) {
+        record(command, commands, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    public void begin(String endpoint) {
+        CURRENT.set(new RequestStats(endpoint));
+    }
+
+    /**
+     * The endpoint this thread's commands are tagged with, for work the request hands
+     * to another thread, such as a streamed response body, to {@link #begin} there.
+     */
+    public String currentEndpoint() {
+        RequestStats stats = CURRENT.get();
+        return stats == null ? NO_ENDPOINT : stats.endpoint;
+    }
+
+    public void end() {
+        RequestStats stats = CURRENT.get();
+        CURRENT.remove();
+        if (stats == null) return;
+
+        DistributionSummary.builder("redis.request.commands")
+                .description("Redis commands sent per request")
+                .tag("endpoint", stats.endpoint)
+                .register(registry)
+                .record(stats.commands);
+        Timer.builder("redis.request.time")
+                .description("Time spent in Redis per request")
+                .tag("endpoint", stats.endpoint)
+                .register(registry)
+                .record(stats.nanos, TimeUnit.NANOSECONDS);
+        if (commandBudget > 0 && stats.commands > commandBudget) {
+            logger.warn("{} sent {} Redis commands (budget {}) taking {} ms: {}", stats.endpoint, stats.commands,
+                    commandBudget, TimeUnit.NANOSECONDS.toMillis(stats.nanos), stats.byCommand);
+        }
+    }
+
+    private static class RequestStats {
+        private final String endpoint;
+        private final Map<String, Integer> byCommand = new TreeMap<>();
+        private int commands;
+        private long nanos;
+
+        private RequestStats(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void add(String command, int count, long elapsed) {
+            byCommand.merge(command, count, Integer::sum);
+            commands += count;
+            nanos += elapsed;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Hands out pooled Redis connections for the duration of a single operation.
+ * A {@link Jedis} instance is not thread-safe, so callers must never keep one
+ * beyond the callback they were given.
+ */
+@Component
+public class RedisConnectionManager {
+    private static final Logger logger = LoggerFactory.getLogger(RedisConnectionManager.class);
+    private static final long RESUBSCRIBE_DELAY_MS = 1000;
+
+    private final JedisPool pool;
+    private final List<JedisPubSub> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+    private final Timer borrowTimer;
+    private final Counter borrowFailures;
+    private final RedisCommandMetrics commandMetrics;
+
+    public RedisConnectionManager(JedisPool pool, MeterRegistry registry, RedisCommandMetrics commandMetrics) {
+        this.pool = pool;
+        this.commandMetrics = commandMetrics;
+        this.borrowTimer = Timer.builder("redis.pool.wait")
+                .description("Time spent waiting for a pooled Redis connection")
+                .register(registry);
+        this.borrowFailures = Counter.builder("redis.pool.borrow.failures")
+                .description("Connection borrows that timed out or failed to connect")
+                .register(registry);
+        Gauge.builder("redis.pool.active", pool, JedisPool::getNumActive).register(registry);
+        Gauge.builder("redis.pool.idle", pool, JedisPool::getNumIdle).register(registry);
+        Gauge.builder("redis.pool.waiters", pool, JedisPool::getNumWaiters).register(registry);
+    }
+
+    public <T> T execute(Function<Jedis, T> operation) {
+        try (Jedis jedis = borrow()) {
+            return operation.apply(jedis);
+        }
+    }
+
+    /**
+     * Runs a single command, counted and timed under {@code command}.
+     */
+    public <T> T execute(String command, Function<Jedis, T> operation) {
+        try (Jedis jedis = borrow()) {
+            return commandMetrics.record(command, () -> operation.apply(jedis));
+        }
+    }
+
+    public void run(Consumer<Jedis> operation) {
+        try (Jedis jedis = borrow()) {
+            operation.accept(jedis);
+        }
+    }
+
+    /**
+     * Runs the subscription on its own daemon thread, holding one pooled
+     * connection for as long as it lasts. Dropped connections are resubscribed;
+     * listeners should treat {@code onSubscribe} as "messages may have been missed".
+     */
+    public void subscribe(JedisPubSub listener, String... channels) {
+        subscriptions.add(listener);
+        Thread subscriber = new Thread(() -> {
+            while (!closed) {
+                try (Jedis jedis = borrow()) {
+                    jedis.subscribe(listener, channels);
+                } catch (Exception e) {
+                    if (closed) break;
+                    logger.warn("Subscription to {} lost: {}", String.join(",", channels), e.getMessage());
+                    try {
+                        Thread.sleep(RESUBSCRIBE_DELAY_MS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }, "redis-subscriber-" + String.join(",", channels));
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        for (JedisPubSub listener : subscriptions) {
+            if (listener.isSubscribed()) listener.unsubscribe();
+        }
+    }
+
+    private Jedis borrow() {
+        long start = System.nanoTime();
+        try {
+            return pool.getResource();
+        } catch (JedisException e) {
+            borrowFailures.increment();
+            throw e;
+        } finally {
+            borrowTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.info7255.demo.service;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the hash fields and set members of a flattened plan graph so the
+ * whole graph can be written in one pipelined MULTI/EXEC round trip. Fields
+ * for the same key are merged into a single HSET and members into a single
+ * SADD. Removed fields and members are likewise merged into one HDEL and one
+ * SREM per key.
+ */
+public class RedisWriteBatch {
+    private final Map<String, Map<String, String>> hashes = new LinkedHashMap<>();
+    private final Map<String, Set<String>> sets = new LinkedHashMap<>();
+    private final Map<String, Set<String>> removedFields = new LinkedHashMap<>();
+    private final Map<String, Set<String>> removedMembers = new LinkedHashMap<>();
+    private final Map<String, Map<String, Double>> sortedSets = new LinkedHashMap<>();
+    private final Map<String, byte[]> values = new LinkedHashMap<>();
+    private final Set<String> deletions = new LinkedHashSet<>();
+    private final Map<String, String> messages = new LinkedHashMap<>();
+
+    public void hset(String key, String field, String value) {
+        hashes.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(field, value);
+    }
+
+    public void sadd(String key, String member) {
+        sets.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(member);
+    }
+
+    public void hdel(String key, String field) {
+        removedFields.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(field);
+    }
+
+    public void srem(String key, String member) {
+        removedMembers.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(member);
+    }
+
+    public void zadd(String key, double score, String member) {
+        sortedSets.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(member, score);
+    }
+
+    public void set(String key, byte[] value) {
+        values.put(key, value);
+    }
+
+    /**
+     * Deletes are sent before any other write in the batch.
+     */
+    public void del(String key) {
+        deletions.add(key);
+    }
+
+    /**
+     * Published on EXEC, so subscribers only hear about writes that were applied.
+     */
+    public void publish(String channel, String message) {
+        messages.put(channel, message);
+    }
+
+    public Set<String> hashKeys() {
+        return hashes.keySet();
+    }
+
+    public Set<String> deletedKeys() {
+        return deletions;
+    }
+
+    /**
+     * Number of commands {@link #exec(Jedis)} sends, MULTI and EXEC included.
+     */
+    public int commandCount() {
+        return (deletions.isEmpty() ? 0 : 1) + removedFields.size() + hashes.size() + removedMembers.size() + sets.size()
+                + sortedSets.size() + values.size() + messages.size() + 2;
+    }
+
+    public List<Object> exec(Jedis jedis) {
+        Transaction transaction = jedis.multi();
+        if (!deletions.isEmpty()) transaction.del(deletions.toArray(new String[0]));
+        removedFields.forEach((key, fields) -> transaction.hdel(key, fields.toArray(new String[0])));
+        hashes.forEach(transaction::hset);
+        removedMembers.forEach((key, members) -> transaction.srem(key, members.toArray(new String[0])));
+        sets.forEach((key, members) -> transaction.sadd(key, members.toArray(new String[0])));
+        sortedSets.forEach(transaction::zadd);
+        values.forEach((key, value) -> transaction.set(key.getBytes(StandardCharsets.UTF_8), value));
+        messages.forEach(transaction::publish);
+        return transaction.exec();
+    }
+}
@@ -0,0 +1,118 @@
+package com.info7255.demo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.info7255.demo.model.SearchPage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.JedisPubSub;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Short-lived cache of search result pages. The indexing listener clears it on
+ * every instance, through {@link #INVALIDATION_CHANNEL}, whenever the index
+ * acknowledges a write, so the TTL only bounds staleness if a message is missed.
+ * Writes acknowledged without a refresh only become searchable on the next index
+ * refresh, so those clear the cache one refresh interval later, on a thread of
+ * its own, with invalidations requested in the meantime folded into one.
+ */
+@Component
+public class SearchResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(SearchResultCache.class);
+
+    static final String INVALIDATION_CHANNEL = "search-invalidation";
+
+    private final RedisConnectionManager redis;
+    private final boolean enabled;
+    private final Cache<String, SearchPage> cache;
+    private final long refreshIntervalMs;
+    private final AtomicBoolean invalidationScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService invalidator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-cache-invalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SearchResultCache(RedisConnectionManager redis,
+                             MeterRegistry registry,
+                             @Value("${medicalplan.search.cache.enabled:true}") boolean enabled,
+                             @Value("${medicalplan.search.cache.max-size:1000}") long maxSize,
+                             @Value("${medicalplan.search.cache.ttl-ms:5000}") long ttlMs,
+                             @Value("${elasticsearch.index.refresh-interval-ms:1000}") long refreshIntervalMs) {
+        this.redis = redis;
+        this.enabled = enabled;
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(ttlMs))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "searchCache");
+
+        if (enabled) {
+            redis.subscribe(new InvalidationListener(), INVALIDATION_CHANNEL);
+        }
+    }
+
+    public SearchPage get(String query) {
+        return enabled ? cache.getIfPresent(query) : null;
+    }
+
+    public void put(String query, SearchPage page) {
+        if (enabled) cache.put(query, page);
+    }
+
+    @PreDestroy
+    public void close() {
+        invalidator.shutdownNow();
+    }
+
+    /**
+     * Clears the cache everywhere once writes acknowledged now have been refreshed
+     * into the index. Returns at once, so it is safe on the client's I/O threads.
+     */
+    public void invalidateAfterRefresh() {
+        if (!enabled || !invalidationScheduled.compareAndSet(false, true)) return;
+        invalidator.schedule(() -> {
+            // Cleared first, so a write acknowledged while this runs schedules another pass
+            invalidationScheduled.set(false);
+            invalidateEverywhere();
+        }, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Clears the cache here and on every other instance.
+     */
+    public void invalidateEverywhere() {
+        if (!enabled) return;
+        cache.invalidateAll();
+        try {
+            redis.run(jedis -> jedis.publish(INVALIDATION_CHANNEL, PlanCache.INVALIDATE_ALL));
+        } catch (RuntimeException e) {
+            logger.warn("Could not publish search cache invalidation: {}", e.getMessage());
+        }
+    }
+
+    private class InvalidationListener extends JedisPubSub {
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            // Anything published while we were disconnected is lost
+            cache.invalidateAll();
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            cache.invalidateAll();
+        }
+    }
+}
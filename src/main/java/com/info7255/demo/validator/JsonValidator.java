@@ -1,24 +1,178 @@
 package com.info7255.demo.validator;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.everit.json.schema.ArraySchema;
+import org.everit.json.schema.BooleanSchema;
+import org.everit.json.schema.CombinedSchema;
+import org.everit.json.schema.NumberSchema;
+import org.everit.json.schema.ObjectSchema;
+import org.everit.json.schema.ReferenceSchema;
 import org.everit.json.schema.Schema;
 import org.everit.json.schema.ValidationException;
+import org.everit.json.schema.Validator;
 import org.everit.json.schema.loader.SchemaLoader;
 import org.json.JSONObject;
 import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Validates plans against a schema that is compiled once and shared by all
+ * request threads. The schema file is checked for changes at most once per
+ * reload interval and recompiled in place; a schema that fails to load keeps
+ * the previous one in service.
+ */
 @Service
 public class JsonValidator {
+    private static final Logger logger = LoggerFactory.getLogger(JsonValidator.class);
+
+    private final Resource schemaResource;
+    private final long reloadCheckIntervalMs;
+    // Callers only need pass/fail, so stop at the first violation
+    private final Validator validator = Validator.builder().failEarly().build();
+
+    private final Timer validTimer;
+    private final Timer invalidTimer;
+    private final Counter reloads;
+
+    private volatile Schema schema;
+    private volatile long schemaLastModified;
+    private volatile long nextReloadCheck;
+
+    public JsonValidator(ResourceLoader resourceLoader,
+                         MeterRegistry registry,
+                         @Value("${medicalplan.schema.location:classpath:plan-schema.json}") String schemaLocation,
+                         @Value("${medicalplan.schema.reload-check-ms:5000}") long reloadCheckIntervalMs) {
+        this.schemaResource = resourceLoader.getResource(schemaLocation);
+        this.reloadCheckIntervalMs = reloadCheckIntervalMs;
+        this.validTimer = Timer.builder("plan.schema.validation").tag("result", "valid").register(registry);
+        this.invalidTimer = Timer.builder("plan.schema.validation").tag("result", "invalid").register(registry);
+        this.reloads = Counter.builder("plan.schema.reloads").register(registry);
+        reload();
+    }
+
     public void validateJsonSchema(JSONObject object) throws ValidationException {
-        try(InputStream inputStream = getClass().getResourceAsStream("/plan-schema.json")) {
+        reloadIfModified();
+        long start = System.nanoTime();
+        try {
+            validator.performValidation(schema, object);
+            validTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (ValidationException e) {
+            invalidTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    /**
+     * Turns the string values of a document read back from Redis into the numbers and
+     * booleans the schema declares at their position. Values the schema calls strings,
+     * or does not describe, stay strings, however they look.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> restoreTypes(Map<String, Object> document) {
+        reloadIfModified();
+        return (Map<String, Object>) restoreTypes(schema, document);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object restoreTypes(Schema schema, Object value) {
+        if (schema instanceof ReferenceSchema) {
+            return restoreTypes(((ReferenceSchema) schema).getReferredSchema(), value);
+        }
+        if (schema instanceof CombinedSchema) {
+            // The first alternative that reads the value as something other than a string
+            for (Schema alternative : ((CombinedSchema) schema).getSubschemas()) {
+                Object restored = restoreTypes(alternative, value);
+                if (restored != value) return restored;
+            }
+            return value;
+        }
+        if (schema instanceof ObjectSchema && value instanceof Map) {
+            Map<String, Schema> properties = ((ObjectSchema) schema).getPropertySchemas();
+            Map<String, Object> object = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, property) -> {
+                Schema propertySchema = properties.get(name);
+                object.put(name, propertySchema == null ? property : restoreTypes(propertySchema, property));
+            });
+            return object;
+        }
+        if (schema instanceof ArraySchema && value instanceof List) {
+            ArraySchema arraySchema = (ArraySchema) schema;
+            List<Schema> itemSchemas = arraySchema.getItemSchemas();
+            List<Object> items = new ArrayList<>();
+            for (Object item : (List<Object>) value) {
+                Schema itemSchema = arraySchema.getAllItemSchema();
+                if (itemSchema == null && itemSchemas != null && items.size() < itemSchemas.size()) {
+                    itemSchema = itemSchemas.get(items.size());
+                }
+                items.add(itemSchema == null ? item : restoreTypes(itemSchema, item));
+            }
+            return items;
+        }
+        if (!(value instanceof String)) return value;
+        String text = (String) value;
+        try {
+            if (schema instanceof NumberSchema) {
+                if (!((NumberSchema) schema).requiresInteger()) return new BigDecimal(text);
+                long number = Long.parseLong(text);
+                return number == (int) number ? (Object) (int) number : (Object) number;
+            }
+        } catch (NumberFormatException e) {
+            // Not a number after all; validation reports it
+            return value;
+        }
+        if (schema instanceof BooleanSchema && ("true".equals(text) || "false".equals(text))) {
+            return Boolean.valueOf(text);
+        }
+        return value;
+    }
+
+    public synchronized void reload() {
+        long lastModified = lastModified();
+        try (InputStream inputStream = schemaResource.getInputStream()) {
             JSONObject schemaJson = new JSONObject(new JSONTokener(inputStream));
-            Schema schema = SchemaLoader.load(schemaJson);
-            schema.validate(object);
+            schema = SchemaLoader.load(schemaJson);
+            schemaLastModified = lastModified;
+            reloads.increment();
+            logger.info("Loaded plan schema from {}", schemaResource.getDescription());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private void reloadIfModified() {
+        long now = System.currentTimeMillis();
+        if (now < nextReloadCheck) return;
+        nextReloadCheck = now + reloadCheckIntervalMs;
+
+        if (lastModified() <= schemaLastModified) return;
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            logger.error("Keeping previous plan schema, reload failed: {}", e.getMessage());
+        }
+    }
+
+    private long lastModified() {
+        try {
+            return schemaResource.lastModified();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+-- Reassembles the node at KEYS[1] and everything below it into a JSON document
+-- in a single call. Children are found through the links:<key> hashes that
+-- MedicalPlanService maintains. Integer-looking values are emitted as numbers,
+-- matching the Java reader. Returns nil when the node does not exist.
+--
+-- With ARGV[1] == 'raw' every value is returned exactly as stored, eTags
+-- included, for callers that write the document back.
+
+local raw = ARGV[1] == 'raw'
+
+local function encodeValue(value)
+    if not raw and string.match(value, '^[-+]?%d+$') then
+        local number = tonumber(value)
+        if number >= -2147483648 and number <= 2147483647 then
+            return string.format('%d', number)
+        end
+    end
+    return cjson.encode(value)
+end
+
+local function assemble(key)
+    local parts = {}
+
+    local fields = redis.call('HGETALL', key)
+    for i = 1, #fields, 2 do
+        if raw or fields[i] ~= 'eTag' then
+            parts[#parts + 1] = cjson.encode(fields[i]) .. ':' .. encodeValue(fields[i + 1])
+        end
+    end
+
+    local links = redis.call('HGETALL', 'links:' .. key)
+    for i = 1, #links, 2 do
+        local attribute, kind = links[i], links[i + 1]
+        local members = redis.call('SMEMBERS', key .. ':' .. attribute)
+        if kind == 'array' then
+            local items = {}
+            for j = 1, #members do
+                items[j] = assemble(members[j])
+            end
+            parts[#parts + 1] = cjson.encode(attribute) .. ':[' .. table.concat(items, ',') .. ']'
+        elseif #members > 0 then
+            parts[#parts + 1] = cjson.encode(attribute) .. ':' .. assemble(members[1])
+        end
+    end
+
+    return '{' .. table.concat(parts, ',') .. '}'
+end
+
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return false
+end
+return assemble(KEYS[1])
@@ -0,0 +1,116 @@
+package com.info7255.demo.filter;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenVerifierTest {
+
+    private static final String CLIENT_ID = "test-client";
+    private static final String ISSUER = "https://accounts.google.com";
+    private static final String KEY_ID = "test-key";
+
+    private static RSAKey signingKey;
+    private static RSAKey otherKey;
+
+    private final TokenVerifier verifier = new TokenVerifier(keySource(), new SimpleMeterRegistry(),
+            CLIENT_ID, List.of("accounts.google.com", ISSUER), 0, 100);
+
+    @BeforeAll
+    static void generateKeys() throws JOSEException {
+        signingKey = new RSAKeyGenerator(2048).keyID(KEY_ID).generate();
+        // Same key id, so only the signature tells them apart
+        otherKey = new RSAKeyGenerator(2048).keyID(KEY_ID).generate();
+    }
+
+    @Test
+    void acceptsAValidToken() throws JOSEException {
+        JWTClaimsSet claims = verifier.verify(sign(signingKey, claims(60_000).build()));
+
+        assertThat(claims).isNotNull();
+        assertThat(claims.getSubject()).isEqualTo("user-1");
+    }
+
+    @Test
+    void rejectsATokenSignedWithAnotherKey() throws JOSEException {
+        assertThat(verifier.verify(sign(otherKey, claims(60_000).build()))).isNull();
+    }
+
+    @Test
+    void rejectsATokenSignedWithAnUnknownKeyId() throws JOSEException {
+        RSAKey unknown = new RSAKeyGenerator(2048).keyID("unknown-key").generate();
+
+        assertThat(verifier.verify(sign(unknown, claims(60_000).build()))).isNull();
+    }
+
+    @Test
+    void rejectsATokenForAnotherClient() throws JOSEException {
+        assertThat(verifier.verify(sign(signingKey, claims(60_000).audience("other-client").build()))).isNull();
+    }
+
+    @Test
+    void rejectsATokenFromAnotherIssuer() throws JOSEException {
+        assertThat(verifier.verify(sign(signingKey, claims(60_000).issuer("https://example.com").build()))).isNull();
+    }
+
+    @Test
+    void rejectsAnExpiredToken() throws JOSEException {
+        assertThat(verifier.verify(sign(signingKey, claims(-60_000).build()))).isNull();
+    }
+
+    @Test
+    void rejectsAMalformedToken() {
+        assertThat(verifier.verify("not-a-token")).isNull();
+    }
+
+    @Test
+    void servesAVerifiedTokenFromTheCacheOnlyUntilItExpires() throws JOSEException, InterruptedException {
+        // exp is carried in whole seconds
+        long expiresAt = (System.currentTimeMillis() / 1000 + 2) * 1000;
+        String token = sign(signingKey, claims(0).expirationTime(new Date(expiresAt)).build());
+
+        JWTClaimsSet first = verifier.verify(token);
+        assertThat(first).isNotNull();
+        assertThat(verifier.verify(token)).isSameAs(first);
+
+        Thread.sleep(expiresAt - System.currentTimeMillis() + 200);
+        assertThat(verifier.verify(token)).isNull();
+    }
+
+    private static SigningKeySource keySource() {
+        String jwks = new JWKSet(signingKey.toPublicJWK()).toString();
+        return new LocalSigningKeySource(new ByteArrayResource(jwks.getBytes(StandardCharsets.UTF_8), "test keys"));
+    }
+
+    private static JWTClaimsSet.Builder claims(long expiresInMs) {
+        long now = System.currentTimeMillis();
+        return new JWTClaimsSet.Builder()
+                .subject("user-1")
+                .issuer(ISSUER)
+                .audience(CLIENT_ID)
+                .issueTime(new Date(now - 1000))
+                .expirationTime(new Date(now + expiresInMs));
+    }
+
+    private static String sign(RSAKey key, JWTClaimsSet claims) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+}
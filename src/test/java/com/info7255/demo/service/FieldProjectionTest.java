@@ -0,0 +1,73 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FieldProjectionTest {
+
+    @Test
+    void readsTopLevelAttributesWhole() {
+        FieldProjection projection = FieldProjection.parse("planType,planCostShares");
+
+        assertThat(projection.attributes).containsOnlyKeys("planType", "planCostShares");
+        assertThat(projection.attributes.get("planCostShares").whole).isTrue();
+        assertThat(projection.attributes.get("planCostShares").attributes).isEmpty();
+        assertThat(projection.whole).isFalse();
+    }
+
+    @Test
+    void stepsIntoChildObjectsAlongADottedPath() {
+        FieldProjection projection = FieldProjection.parse("linkedPlanServices.linkedService.name");
+
+        FieldProjection services = projection.attributes.get("linkedPlanServices");
+        FieldProjection service = services.attributes.get("linkedService");
+        assertThat(services.whole).isFalse();
+        assertThat(service.whole).isFalse();
+        assertThat(service.attributes).containsOnlyKeys("name");
+        assertThat(service.attributes.get("name").whole).isTrue();
+    }
+
+    @Test
+    void mergesPathsThatShareAPrefix() {
+        FieldProjection projection = FieldProjection.parse(
+                "linkedPlanServices.linkedService.name, linkedPlanServices.planserviceCostShares.copay");
+
+        assertThat(projection.attributes).containsOnlyKeys("linkedPlanServices");
+        assertThat(projection.attributes.get("linkedPlanServices").attributes)
+                .containsOnlyKeys("linkedService", "planserviceCostShares");
+    }
+
+    @Test
+    void readsAnAttributeWholeWhenAlsoNamedOnItsOwn() {
+        FieldProjection projection = FieldProjection.parse("planCostShares.copay,planCostShares");
+
+        assertThat(projection.attributes.get("planCostShares").whole).isTrue();
+    }
+
+    @Test
+    void keepsPathsTheSchemaDoesNotHave() {
+        // Attributes missing from the stored object are simply left out of the result
+        FieldProjection projection = FieldProjection.parse("noSuchAttribute.deeper");
+
+        assertThat(projection.attributes.get("noSuchAttribute").attributes).containsOnlyKeys("deeper");
+    }
+
+    @Test
+    void ignoresEmptyEntries() {
+        assertThat(FieldProjection.parse(" planType ,,").attributes).containsOnlyKeys("planType");
+    }
+
+    @Test
+    void rejectsEmptyPathSegments() {
+        assertThatThrownBy(() -> FieldProjection.parse("planCostShares..copay")).isInstanceOf(BadRequestException.class);
+        assertThatThrownBy(() -> FieldProjection.parse(".planType")).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void rejectsAListWithoutAttributes() {
+        assertThatThrownBy(() -> FieldProjection.parse(" , ")).isInstanceOf(BadRequestException.class);
+    }
+}
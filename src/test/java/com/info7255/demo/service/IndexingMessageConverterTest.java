@@ -0,0 +1,111 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.model.IndexingMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IndexingMessageConverterTest {
+
+    private final IndexingMessageConverter converter = new IndexingMessageConverter(4096);
+
+    @Test
+    void roundTripsAMessageWithAPayload() throws IOException {
+        Map<String, Object> plan = TestPlans.samplePlan().toMap();
+        IndexingMessage sent = new IndexingMessage(IndexingPublisher.SAVE, "12xvxc345ssdsds-508", 42, 1700000000000L, plan);
+
+        Message message = converter.toMessage(sent, new MessageProperties());
+        IndexingMessage received = converter.fromMessage(message);
+
+        assertThat(message.getMessageProperties().getContentType()).isEqualTo(IndexingMessageConverter.CONTENT_TYPE);
+        assertThat(message.getBody()[0]).isEqualTo(IndexingMessageConverter.VERSION);
+        assertThat(received.getOperation()).isEqualTo(IndexingPublisher.SAVE);
+        assertThat(received.getPlanId()).isEqualTo("12xvxc345ssdsds-508");
+        assertThat(received.getSequence()).isEqualTo(42);
+        assertThat(received.getPublishedAt()).isEqualTo(1700000000000L);
+        assertThat(received.getPayload()).isEqualTo(plan);
+        assertThat(received.isRefresh()).isFalse();
+    }
+
+    @Test
+    void roundTripsACompressedPayload() throws IOException {
+        Map<String, Object> plan = TestPlans.samplePlan().toMap();
+        IndexingMessageConverter compressing = new IndexingMessageConverter(0);
+
+        Message message = compressing.toMessage(new IndexingMessage(IndexingPublisher.SAVE, "p", 1, 2, plan), new MessageProperties());
+
+        assertThat(message.getBody()[1] & 1).isEqualTo(1);
+        assertThat(compressing.fromMessage(message).getPayload()).isEqualTo(plan);
+    }
+
+    @Test
+    void roundTripsARefreshWithoutAPayload() {
+        IndexingMessage sent = new IndexingMessage(IndexingPublisher.DELETE, "p", 7, 8, null, true);
+
+        IndexingMessage received = converter.fromMessage(converter.toMessage(sent, new MessageProperties()));
+
+        assertThat(received.getOperation()).isEqualTo(IndexingPublisher.DELETE);
+        assertThat(received.getPayload()).isNull();
+        assertThat(received.isRefresh()).isTrue();
+    }
+
+    @Test
+    void decodesVersionOneWithoutAPublishTime() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeByte(0);
+        out.writeUTF(IndexingPublisher.DELETE);
+        out.writeUTF("p");
+        out.writeLong(9);
+        out.writeInt(0);
+
+        IndexingMessage received = converter.fromMessage(envelope(bytes.toByteArray()));
+
+        assertThat(received.getPlanId()).isEqualTo("p");
+        assertThat(received.getSequence()).isEqualTo(9);
+        assertThat(received.getPublishedAt()).isZero();
+        assertThat(received.getPayload()).isNull();
+    }
+
+    @Test
+    void rejectsAnUnknownVersion() {
+        byte[] body = {(byte) (IndexingMessageConverter.VERSION + 1), 0};
+
+        assertThatThrownBy(() -> converter.fromMessage(envelope(body))).isInstanceOf(MessageConversionException.class);
+    }
+
+    @Test
+    void decodesTheLegacyMapFormat() {
+        Map<String, String> legacy = new HashMap<>();
+        legacy.put("operation", IndexingPublisher.SAVE);
+        legacy.put("body", "{\"objectId\":\"p\",\"objectType\":\"plan\",\"planCostShares\":{\"objectId\":\"c\",\"copay\":23}}");
+        legacy.put("refresh", "true");
+        Message message = new SimpleMessageConverter().toMessage(legacy, new MessageProperties());
+
+        IndexingMessage received = converter.fromMessage(message);
+
+        assertThat(received.getOperation()).isEqualTo(IndexingPublisher.SAVE);
+        assertThat(received.getPlanId()).isEqualTo("p");
+        assertThat(received.getSequence()).isZero();
+        assertThat(received.isRefresh()).isTrue();
+        assertThat(received.getPayload()).containsEntry("planCostShares", Map.of("objectId", "c", "copay", 23));
+    }
+
+    private static Message envelope(byte[] body) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(IndexingMessageConverter.CONTENT_TYPE);
+        return new Message(body, properties);
+    }
+}
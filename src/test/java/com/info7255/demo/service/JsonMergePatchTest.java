@@ -0,0 +1,80 @@
+package com.info7255.demo.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonMergePatchTest {
+
+    // The examples of RFC 7386, appendix A
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "{\"a\":\"b\"}                  | {\"a\":\"c\"}                    | {\"a\":\"c\"}",
+            "{\"a\":\"b\"}                  | {\"b\":\"c\"}                    | {\"a\":\"b\",\"b\":\"c\"}",
+            "{\"a\":\"b\"}                  | {\"a\":null}                     | {}",
+            "{\"a\":\"b\",\"b\":\"c\"}      | {\"a\":null}                     | {\"b\":\"c\"}",
+            "{\"a\":[\"b\"]}                | {\"a\":\"c\"}                    | {\"a\":\"c\"}",
+            "{\"a\":\"c\"}                  | {\"a\":[\"b\"]}                  | {\"a\":[\"b\"]}",
+            "{\"a\":{\"b\":\"c\"}}          | {\"a\":{\"b\":\"d\",\"c\":null}} | {\"a\":{\"b\":\"d\"}}",
+            "{\"a\":[{\"b\":\"c\"}]}        | {\"a\":[1]}                      | {\"a\":[1]}",
+            "[\"a\",\"b\"]                  | [\"c\",\"d\"]                    | [\"c\",\"d\"]",
+            "{\"a\":\"b\"}                  | [\"c\"]                          | [\"c\"]",
+            "{\"a\":\"foo\"}                | null                             | null",
+            "{\"a\":\"foo\"}                | \"bar\"                          | \"bar\"",
+            "{\"e\":null}                   | {\"a\":1}                        | {\"e\":null,\"a\":1}",
+            "[1,2]                          | {\"a\":\"b\",\"c\":null}         | {\"a\":\"b\"}",
+            "{}                             | {\"a\":{\"bb\":{\"ccc\":null}}}  | {\"a\":{\"bb\":{}}}"
+    })
+    void appliesTheRfcExamples(String target, String patch, String expected) {
+        assertThat(JsonMergePatch.apply(json(target), json(patch))).isEqualTo(json(expected));
+    }
+
+    @Test
+    void replacesArraysOfObjectsWhole() {
+        Object target = json("{\"linkedPlanServices\":[{\"objectId\":\"1\",\"_org\":\"a\"},{\"objectId\":\"2\"}]}");
+        Object patch = json("{\"linkedPlanServices\":[{\"objectId\":\"1\"}]}");
+
+        assertThat(JsonMergePatch.apply(target, patch)).isEqualTo(json("{\"linkedPlanServices\":[{\"objectId\":\"1\"}]}"));
+    }
+
+    @Test
+    void leavesItsArgumentsUnchanged() {
+        Object target = json("{\"a\":{\"b\":\"c\",\"d\":\"e\"}}");
+        Object patch = json("{\"a\":{\"b\":null,\"f\":\"g\"}}");
+
+        JsonMergePatch.apply(target, patch);
+
+        assertThat(target).isEqualTo(json("{\"a\":{\"b\":\"c\",\"d\":\"e\"}}"));
+        assertThat(patch).isEqualTo(json("{\"a\":{\"b\":null,\"f\":\"g\"}}"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void keepsTheOrderOfTargetMembers() {
+        Map<String, Object> target = new LinkedHashMap<>();
+        target.put("b", 2);
+        target.put("a", 1);
+
+        Object merged = JsonMergePatch.apply(target, json("{\"c\":3,\"a\":4}"));
+
+        assertThat(((Map<String, Object>) merged).keySet()).containsExactly("b", "a", "c");
+    }
+
+    /**
+     * Parses JSON text into the maps, lists and nulls the service hands the patch, as JSONObject.toMap does.
+     */
+    private static Object json(String text) {
+        Object value = new JSONTokener(text.trim()).nextValue();
+        if (value instanceof JSONObject) return ((JSONObject) value).toMap();
+        if (value instanceof JSONArray) return ((JSONArray) value).toList();
+        return JSONObject.NULL.equals(value) ? null : value;
+    }
+}
@@ -0,0 +1,141 @@
+package com.info7255.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanDeltaTest {
+
+    private static final String PLAN_ID = "12xvxc345ssdsds-508";
+
+    @Test
+    void isEmptyForAnUnchangedPlan() throws IOException {
+        assertThat(PlanDelta.between(plan(), plan()).isEmpty()).isTrue();
+    }
+
+    @Test
+    void comparesStoredStringsWithTypedValues() throws IOException {
+        Map<String, Object> stored = plan();
+        costShares(stored).put("copay", "23");
+
+        assertThat(PlanDelta.between(stored, plan()).isEmpty()).isTrue();
+    }
+
+    @Test
+    void updatesOnlyTheChangedFields() throws IOException {
+        Map<String, Object> after = plan();
+        costShares(after).put("copay", 30);
+        costShares(after).remove("_org");
+
+        PlanDelta delta = PlanDelta.between(plan(), after);
+
+        assertThat(delta.getUpserts()).hasSize(1);
+        PlanDelta.Upsert upsert = delta.getUpserts().get(0);
+        assertThat(upsert.getId()).isEqualTo("1234vxc2324sdf-501");
+        assertThat(upsert.isCreated()).isFalse();
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("copay", 30);
+        fields.put("_org", null);
+        assertThat(upsert.getFields()).isEqualTo(fields);
+        assertThat(delta.getRemovedIds()).isEmpty();
+    }
+
+    @Test
+    void removesAnObjectWithEverythingBelowIt() throws IOException {
+        Map<String, Object> after = plan();
+        services(after).remove(1);
+
+        PlanDelta delta = PlanDelta.between(plan(), after);
+
+        assertThat(delta.getUpserts()).isEmpty();
+        assertThat(delta.getRemovedIds())
+                .containsExactlyInAnyOrder("27283xvx9sdf-507", "1234520xvc30sfs-505", "1234512xvc1314sdfsd-506");
+    }
+
+    @Test
+    void addsANewObjectWhole() throws IOException {
+        Map<String, Object> before = plan();
+        services(before).remove(1);
+
+        PlanDelta delta = PlanDelta.between(before, plan());
+
+        assertThat(delta.getUpserts()).extracting(PlanDelta.Upsert::getId)
+                .containsExactlyInAnyOrder("27283xvx9sdf-507", "1234520xvc30sfs-505", "1234512xvc1314sdfsd-506");
+        assertThat(delta.getUpserts()).allMatch(PlanDelta.Upsert::isCreated);
+        PlanDelta.Upsert service = delta.getUpserts().stream()
+                .filter(upsert -> upsert.getId().equals("27283xvx9sdf-507")).findFirst().get();
+        assertThat(service.getRelation()).isEqualTo("linkedPlanServices");
+        assertThat(service.getParentId()).isEqualTo(PLAN_ID);
+        assertThat(service.getFields()).containsEntry("objectType", "planservice").containsEntry("_org", "example.com");
+    }
+
+    @Test
+    void reindexesAnObjectMovedToAnotherAttributeInsteadOfRemovingIt() throws IOException {
+        Map<String, Object> after = plan();
+        Map<String, Object> moved = serviceCostShares(services(after).get(0));
+        services(after).get(0).remove("planserviceCostShares");
+        after.put("planCostShares", moved);
+
+        PlanDelta delta = PlanDelta.between(plan(), after);
+
+        assertThat(delta.getRemovedIds()).containsExactly("1234vxc2324sdf-501");
+        assertThat(delta.getUpserts()).hasSize(1);
+        PlanDelta.Upsert upsert = delta.getUpserts().get(0);
+        assertThat(upsert.getId()).isEqualTo("1234512xvc1314asdfs-503");
+        assertThat(upsert.isCreated()).isTrue();
+        assertThat(upsert.getRelation()).isEqualTo("planCostShares");
+        assertThat(upsert.getParentId()).isEqualTo(PLAN_ID);
+    }
+
+    @Test
+    void reindexesAnObjectMovedToAnotherParent() throws IOException {
+        Map<String, Object> after = plan();
+        Map<String, Object> moved = serviceCostShares(services(after).get(0));
+        services(after).get(0).remove("planserviceCostShares");
+        services(after).get(1).put("planserviceCostShares", moved);
+
+        PlanDelta delta = PlanDelta.between(plan(), after);
+
+        assertThat(delta.getRemovedIds()).containsExactly("1234512xvc1314sdfsd-506");
+        assertThat(delta.getUpserts()).extracting(PlanDelta.Upsert::getId).containsExactly("1234512xvc1314asdfs-503");
+        assertThat(delta.getUpserts().get(0).getParentId()).isEqualTo("27283xvx9sdf-507");
+    }
+
+    @Test
+    void roundTripsThroughItsPayload() throws IOException {
+        Map<String, Object> after = plan();
+        costShares(after).put("copay", 30);
+        services(after).remove(1);
+
+        PlanDelta delta = PlanDelta.fromPayload(PlanDelta.between(plan(), after).toPayload());
+
+        assertThat(delta.getPlanId()).isEqualTo(PLAN_ID);
+        assertThat(delta.getUpserts()).extracting(PlanDelta.Upsert::getId).containsExactly("1234vxc2324sdf-501");
+        assertThat(delta.getUpserts().get(0).getRelation()).isEqualTo("planCostShares");
+        assertThat(delta.getRemovedIds()).hasSize(3);
+    }
+
+    private static Map<String, Object> plan() throws IOException {
+        return TestPlans.samplePlan().toMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> costShares(Map<String, Object> plan) {
+        return (Map<String, Object>) plan.get("planCostShares");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> services(Map<String, Object> plan) {
+        return (List<Map<String, Object>>) plan.get("linkedPlanServices");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> serviceCostShares(Map<String, Object> service) {
+        return (Map<String, Object>) service.get("planserviceCostShares");
+    }
+}
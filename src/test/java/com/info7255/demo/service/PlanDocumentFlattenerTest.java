@@ -0,0 +1,70 @@
+package com.info7255.demo.service;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanDocumentFlattenerTest {
+
+    private final PlanDocumentFlattener flattener = new PlanDocumentFlattener();
+
+    @Test
+    void producesTheSameDocumentsAsTheRecursiveConverter() throws IOException {
+        JSONObject plan = TestPlans.samplePlan();
+
+        Map<String, Map<String, Object>> expected = new HashMap<>();
+        RecursiveConverter.convert(plan, "", "plan", expected);
+
+        Map<String, Map<String, Object>> actual = new HashMap<>();
+        flattener.flatten(plan.toMap(), (routing, id, source) -> actual.put(id, source));
+
+        assertThat(actual).isEqualTo(expected);
+        assertThat(actual).hasSize(8);
+    }
+
+    @Test
+    void routesEveryDocumentByThePlanId() throws IOException {
+        Map<String, Object> plan = TestPlans.samplePlan().toMap();
+
+        Set<String> routings = new HashSet<>();
+        flattener.flatten(plan, (routing, id, source) -> routings.add(routing));
+
+        assertThat(routings).containsExactly("12xvxc345ssdsds-508");
+    }
+
+    @Test
+    void visitsTheIdsOfEveryDocument() throws IOException {
+        Map<String, Object> plan = TestPlans.samplePlan().toMap();
+
+        List<String> documentIds = new ArrayList<>();
+        flattener.flatten(plan, (routing, id, source) -> documentIds.add(id));
+        List<String> visitedIds = new ArrayList<>();
+        flattener.forEachId(plan, (routing, id) -> visitedIds.add(id));
+
+        assertThat(visitedIds).containsExactlyInAnyOrderElementsOf(documentIds);
+    }
+
+    @Test
+    void joinsChildrenToTheObjectHoldingThem() throws IOException {
+        Map<String, Object> plan = TestPlans.samplePlan().toMap();
+
+        Map<String, Map<String, Object>> documents = new HashMap<>();
+        flattener.flatten(plan, (routing, id, source) -> documents.put(id, source));
+
+        assertThat(documents.get("12xvxc345ssdsds-508").get(PlanDocumentFlattener.JOIN_FIELD)).isEqualTo("plan");
+        assertThat(documents.get("1234vxc2324sdf-501").get(PlanDocumentFlattener.JOIN_FIELD))
+                .isEqualTo(Map.of("name", "planCostShares", "parent", "12xvxc345ssdsds-508"));
+        // Objects in an array join to the object that holds the array
+        assertThat(documents.get("1234520xvc30asdf-502").get(PlanDocumentFlattener.JOIN_FIELD))
+                .isEqualTo(Map.of("name", "linkedService", "parent", "27283xvx9asdff-504"));
+    }
+}
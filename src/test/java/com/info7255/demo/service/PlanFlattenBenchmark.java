@@ -0,0 +1,75 @@
+package com.info7255.demo.service;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning the sample plan into index documents with {@link PlanDocumentFlattener}
+ * against the {@link RecursiveConverter} it replaced, each from the form the
+ * listener receives it in. {@link #main} runs with the GC profiler, equivalent to
+ * {@code -prof gc}, so {@code gc.alloc.rate.norm} gives the bytes allocated per
+ * plan. Run it from the test classpath, e.g. {@code mvn test-compile exec:java
+ * -Dexec.classpathScope=test -Dexec.mainClass=com.info7255.demo.service.PlanFlattenBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlanFlattenBenchmark {
+
+    private final PlanDocumentFlattener flattener = new PlanDocumentFlattener();
+    private JSONObject planObject;
+    private Map<String, Object> planMap;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PlanFlattenBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        planObject = TestPlans.samplePlan();
+        planMap = planObject.toMap();
+    }
+
+    /**
+     * Documents go straight to the sink, as they do into index requests in the listener.
+     */
+    @Benchmark
+    public void flattener(Blackhole blackhole) {
+        flattener.flatten(planMap, (routing, id, source) -> blackhole.consume(source));
+    }
+
+    /**
+     * The old converter could only collect its documents into a map, so that map is part of its cost.
+     */
+    @Benchmark
+    public Map<String, Map<String, Object>> recursiveConverter() {
+        Map<String, Map<String, Object>> documents = new HashMap<>();
+        RecursiveConverter.convert(planObject, "", "plan", documents);
+        return documents;
+    }
+}
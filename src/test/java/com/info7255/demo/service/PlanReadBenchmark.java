@@ -0,0 +1,99 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.validator.JsonValidator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+import redis.clients.jedis.JedisPool;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-plan reads through {@link MedicalPlanService} in each storage and read
+ * mode, against a live Redis at {@code -Dredis.host}/{@code -Dredis.port}
+ * (localhost:6379 by default). Each mode writes its own copy of the sample plan
+ * and removes it afterwards. Run {@link #main} from the test classpath, e.g.
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.info7255.demo.service.PlanReadBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlanReadBenchmark {
+
+    // storage-mode:read-mode
+    @Param({"hash:recursive", "hash:script", "hash-and-blob:script"})
+    public String mode;
+
+    private JedisPool pool;
+    private MedicalPlanService service;
+    private String planKey;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PlanReadBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] modes = mode.split(":");
+        pool = new JedisPool(System.getProperty("redis.host", "localhost"), Integer.getInteger("redis.port", 6379));
+        MeterRegistry registry = new SimpleMeterRegistry();
+        RedisCommandMetrics commands = new RedisCommandMetrics(registry, 0);
+        RedisConnectionManager redis = new RedisConnectionManager(pool, registry, commands);
+        JsonValidator validator = new JsonValidator(new DefaultResourceLoader(), registry, "classpath:plan-schema.json", 60000);
+        service = new MedicalPlanService(redis, new ETagService(), new PlanCache(redis, registry, false, 1, 1),
+                commands, validator, registry, modes[1], modes[0]);
+
+        JSONObject plan = TestPlans.samplePlan();
+        // Every object gets a per-mode id, so the modes never share a key
+        suffixObjectIds(plan, "-bench-" + modes[0] + "-" + modes[1]);
+        planKey = "plan:" + plan.getString("objectId");
+        if (service.checkIfKeyExists(planKey)) service.removePlan(planKey);
+        service.addNewPlan(plan, planKey);
+        // The first read fills the blob in hash-and-blob mode
+        service.retrievePlanDetails(planKey);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.removePlan(planKey);
+        pool.close();
+    }
+
+    @Benchmark
+    public Map<String, Object> readPlan() {
+        return service.retrievePlanDetails(planKey);
+    }
+
+    private static void suffixObjectIds(Object value, String suffix) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            for (String key : object.keySet()) suffixObjectIds(object.get(key), suffix);
+            object.put("objectId", object.getString("objectId") + suffix);
+        } else if (value instanceof JSONArray) {
+            for (Object item : (JSONArray) value) suffixObjectIds(item, suffix);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.join.query.JoinQueryBuilders;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PlanSearchServiceTest {
+
+    // Building a query touches neither Elasticsearch nor the cache
+    private final PlanSearchService service = new PlanSearchService(null, null, null);
+
+    @Test
+    void matchesAFieldOfTheSearchedType() {
+        assertThat(service.buildQuery("plan", "planType:inNetwork"))
+                .isEqualTo(ofType("plan", QueryBuilders.matchQuery("planType", "inNetwork")));
+    }
+
+    @Test
+    void requiresEveryClause() {
+        assertThat(service.buildQuery("plan", "planType:inNetwork _org:example.com"))
+                .isEqualTo(ofType("plan",
+                        QueryBuilders.matchQuery("planType", "inNetwork"),
+                        QueryBuilders.matchQuery("_org", "example.com")));
+    }
+
+    @Test
+    void parsesEachRangeOperator() {
+        assertThat(service.buildQuery("planCostShares", "copay>1 copay>=2 copay<3 copay<=4").filter())
+                .startsWith(
+                        QueryBuilders.rangeQuery("copay").gt("1"),
+                        QueryBuilders.rangeQuery("copay").gte("2"),
+                        QueryBuilders.rangeQuery("copay").lt("3"),
+                        QueryBuilders.rangeQuery("copay").lte("4"));
+    }
+
+    @Test
+    void keepsQuotedSpacesInOneValue() {
+        assertThat(service.buildQuery("linkedService", "name:\"Yoga class\""))
+                .isEqualTo(ofType("linkedService", QueryBuilders.matchQuery("name", "Yoga class")));
+    }
+
+    @Test
+    void nestsChildClausesOneJoinLevelPerPrefix() {
+        BoolQueryBuilder linkedService = QueryBuilders.boolQuery().filter(QueryBuilders.matchQuery("name", "Yoga class"));
+        BoolQueryBuilder linkedPlanServices = QueryBuilders.boolQuery()
+                .filter(JoinQueryBuilders.hasChildQuery("linkedService", linkedService, ScoreMode.None));
+
+        assertThat(service.buildQuery("plan", "linkedPlanServices.linkedService.name:\"Yoga class\""))
+                .isEqualTo(ofType("plan", JoinQueryBuilders.hasChildQuery("linkedPlanServices", linkedPlanServices, ScoreMode.None)));
+    }
+
+    @Test
+    void groupsClausesWithTheSamePrefixOnOneChild() {
+        BoolQueryBuilder costShares = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery("copay").lte("25"))
+                .filter(QueryBuilders.rangeQuery("deductible").gt("100"));
+
+        assertThat(service.buildQuery("plan", "planCostShares.copay<=25 planCostShares.deductible>100"))
+                .isEqualTo(ofType("plan", JoinQueryBuilders.hasChildQuery("planCostShares", costShares, ScoreMode.None)));
+    }
+
+    @Test
+    void matchesTheParentOfAChildType() {
+        BoolQueryBuilder plan = QueryBuilders.boolQuery().filter(QueryBuilders.matchQuery("planType", "inNetwork"));
+
+        assertThat(service.buildQuery("linkedPlanServices", "parent.planType:inNetwork"))
+                .isEqualTo(ofType("linkedPlanServices", JoinQueryBuilders.hasParentQuery("plan", plan, false)));
+    }
+
+    @Test
+    void rejectsQueriesItCannotParse() {
+        assertThatThrownBy(() -> service.buildQuery("plan", "planType")).isInstanceOf(BadRequestException.class);
+        assertThatThrownBy(() -> service.buildQuery("plan", "name:\"Yoga")).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void rejectsJoinsThePlanMappingDoesNotHave() {
+        assertThatThrownBy(() -> service.buildQuery("plan", "linkedService.name:x"))
+                .isInstanceOf(BadRequestException.class).hasMessageContaining("is not a child of plan");
+        assertThatThrownBy(() -> service.buildQuery("plan", "parent.planType:x"))
+                .isInstanceOf(BadRequestException.class).hasMessageContaining("has no parent");
+    }
+
+    private static BoolQueryBuilder ofType(String type, QueryBuilder... clauses) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        for (QueryBuilder clause : clauses) query.filter(clause);
+        return query.filter(QueryBuilders.termQuery(PlanDocumentFlattener.JOIN_FIELD, type));
+    }
+}
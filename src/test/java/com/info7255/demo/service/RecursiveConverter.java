@@ -0,0 +1,56 @@
+package com.info7255.demo.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The converter IndexingListener used before {@link PlanDocumentFlattener}, less its
+ * static state: documents keyed by object id, each with its scalar fields and join field.
+ * Kept as the reference the flattener is tested and benchmarked against.
+ */
+final class RecursiveConverter {
+
+    private RecursiveConverter() {
+    }
+
+    static void convert(JSONObject object, String parentId, String objectName, Map<String, Map<String, Object>> documents) {
+        Map<String, Object> valueMap = new HashMap<>();
+        Iterator<String> iterator = object.keys();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            Object value = object.get(key);
+            if (value instanceof JSONObject) {
+                convert((JSONObject) value, object.get("objectId").toString(), key, documents);
+            } else if (value instanceof JSONArray) {
+                convertList((JSONArray) value, object.get("objectId").toString(), key, documents);
+            } else {
+                valueMap.put(key, value);
+            }
+        }
+
+        if ("plan".equals(objectName)) {
+            valueMap.put("plan_join", objectName);
+        } else {
+            Map<String, Object> join = new HashMap<>();
+            join.put("name", objectName);
+            join.put("parent", parentId);
+            valueMap.put("plan_join", join);
+        }
+        documents.put(object.get("objectId").toString(), valueMap);
+    }
+
+    static void convertList(JSONArray array, String parentId, String objectName, Map<String, Map<String, Object>> documents) {
+        for (int i = 0; i < array.length(); i++) {
+            Object value = array.get(i);
+            if (value instanceof JSONArray) {
+                convertList((JSONArray) value, parentId, objectName, documents);
+            } else if (value instanceof JSONObject) {
+                convert((JSONObject) value, parentId, objectName, documents);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.info7255.demo.service;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixtures shared by the service tests and benchmarks.
+ */
+final class TestPlans {
+
+    private TestPlans() {
+    }
+
+    /**
+     * A fresh copy of the sample plan in {@code plan.json}.
+     */
+    static JSONObject samplePlan() throws IOException {
+        try (InputStream inputStream = TestPlans.class.getResourceAsStream("/plan.json")) {
+            return new JSONObject(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
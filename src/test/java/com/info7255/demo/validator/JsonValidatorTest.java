@@ -0,0 +1,78 @@
+package com.info7255.demo.validator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+
+class JsonValidatorTest {
+
+    private final JsonValidator validator = new JsonValidator(new DefaultResourceLoader(), new SimpleMeterRegistry(),
+            "classpath:plan-schema.json", 60000);
+
+    @Test
+    void restoresIntegersTheSchemaDeclares() {
+        Map<String, Object> restored = validator.restoreTypes(storedPlan());
+
+        assertThat(costShares(restored)).containsEntry("copay", 23).containsEntry("deductible", 2000);
+        assertThat(services(restored).get(0).get("planserviceCostShares")).isEqualTo(Map.of(
+                "deductible", 10, "_org", "example.com", "copay", 0,
+                "objectId", "1234512xvc1314asdfs-503", "objectType", "membercostshare"));
+    }
+
+    @Test
+    void keepsDigitOnlyStringsAsStrings() {
+        Map<String, Object> stored = storedPlan();
+        stored.put("objectId", "508");
+        stored.put("_org", "2017");
+        costShares(stored).put("objectId", "501");
+
+        Map<String, Object> restored = validator.restoreTypes(stored);
+
+        assertThat(restored).containsEntry("objectId", "508").containsEntry("_org", "2017");
+        assertThat(costShares(restored)).containsEntry("objectId", "501");
+        assertThatCode(() -> validator.validateJsonSchema(new JSONObject(restored))).doesNotThrowAnyException();
+    }
+
+    @Test
+    void leavesValuesThatAreNotNumbersForValidationToReport() {
+        Map<String, Object> stored = storedPlan();
+        costShares(stored).put("copay", "twenty");
+
+        assertThat(costShares(validator.restoreTypes(stored))).containsEntry("copay", "twenty");
+    }
+
+    /**
+     * The sample plan as the raw read returns it, every scalar a string.
+     */
+    private static Map<String, Object> storedPlan() {
+        Map<String, Object> costShares = new HashMap<>(Map.of("deductible", "2000", "_org", "example.com", "copay", "23",
+                "objectId", "1234vxc2324sdf-501", "objectType", "membercostshare"));
+        Map<String, Object> service = new HashMap<>(Map.of("_org", "example.com", "objectId", "1234520xvc30asdf-502",
+                "objectType", "service", "name", "Yearly physical"));
+        Map<String, Object> serviceCostShares = new HashMap<>(Map.of("deductible", "10", "_org", "example.com", "copay", "0",
+                "objectId", "1234512xvc1314asdfs-503", "objectType", "membercostshare"));
+        Map<String, Object> planService = new HashMap<>(Map.of("linkedService", service, "planserviceCostShares", serviceCostShares,
+                "_org", "example.com", "objectId", "27283xvx9asdff-504", "objectType", "planservice"));
+        return new HashMap<>(Map.of("planCostShares", costShares, "linkedPlanServices", List.of(planService),
+                "_org", "example.com", "objectId", "12xvxc345ssdsds-508", "objectType", "plan",
+                "planType", "inNetwork", "creationDate", "12-12-2017"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> costShares(Map<String, Object> plan) {
+        return (Map<String, Object>) plan.get("planCostShares");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> services(Map<String, Object> plan) {
+        return (List<Map<String, Object>>) plan.get("linkedPlanServices");
+    }
+}